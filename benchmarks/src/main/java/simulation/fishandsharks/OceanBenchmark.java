@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 maxstrauch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package simulation.fishandsharks;
+
+import java.awt.Point;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import simulation.fishandsharks.Ocean.Cell;
+import simulation.fishandsharks.Ocean.Fish;
+import simulation.fishandsharks.Ocean.Shark;
+
+/**
+ * Benchmarks the per-creature operations, i.e. neighbour queries and the
+ * update rules of a single fish or shark, and the population statistics
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OceanBenchmark {
+
+	private static final int PROBES = 1024, RADIUS = 2;
+
+	@Param({"120", "1000"})
+	public int size;
+
+	@Param({"0.1", "0.5"})
+	public double density;
+
+	private Ocean ocean;
+
+	private int[] xs, ys;
+
+	private int probe;
+
+	private Cell[] neighbourhood;
+
+	private int cx, cy;
+
+	@Setup
+	public void setUp() {
+		SharkFishModel model = new SharkFishModel(size, size);
+		model.fillOceanRandomly(density*2/3, density/3);
+		ocean = model.getOcean();
+
+		Random r = new Random(42);
+		xs = new int[PROBES];
+		ys = new int[PROBES];
+		for (int i = 0; i < PROBES; i++) {
+			xs[i] = r.nextInt(size);
+			ys[i] = r.nextInt(size);
+		}
+
+		// Remember the cells around the centre, so that every update
+		// starts from the same neighbourhood
+		cx = cy = size/2;
+		neighbourhood = new Cell[(2*RADIUS+1)*(2*RADIUS+1)];
+		for (int i = 0; i < neighbourhood.length; i++)
+			neighbourhood[i] = ocean.getField(cx-RADIUS+i%(2*RADIUS+1),
+					cy-RADIUS+i/(2*RADIUS+1));
+	}
+
+	@Benchmark
+	public int freeNeighbourMask() {
+		int i = probe++ & (PROBES-1);
+		return ocean.getFreeNeighbourMask(xs[i], ys[i]);
+	}
+
+	/**
+	 * Uses the right neighbours only, the most expensive direction as it
+	 * shifts a bit over from the next word; a direction changing with the
+	 * probe would mix the cheap and the expensive cases
+	 */
+	@Benchmark
+	public long freeNeighbourWord() {
+		int i = probe++ & (PROBES-1);
+		return ocean.getNeighbourWord(Ocean.PLANE_EMPTY, ys[i],
+				xs[i] >>> 6, 1);
+	}
+
+	@Benchmark
+	public Point[] freeNeighbours() {
+		int i = probe++ & (PROBES-1);
+		return ocean.getFreeNeighbours(xs[i], ys[i]);
+	}
+
+	@Benchmark
+	public Ocean fishUpdate() {
+		Fish fish = new Fish();
+		reset(fish);
+		fish.internalUpdate(ocean, cx, cy, 0, 2, 3);
+		return ocean;
+	}
+
+	@Benchmark
+	public Ocean sharkUpdate() {
+		Shark shark = new Shark();
+		reset(shark);
+		shark.internalUpdate(ocean, cx, cy, 0, 2, 3);
+		return ocean;
+	}
+
+	@Benchmark
+	public int[][] statistics() {
+		return ocean.getPopulation().getAgeDistribution();
+	}
+
+	/**
+	 * Restores the neighbourhood of the centre and puts the given
+	 * creature into it
+	 */
+	private void reset(Cell centre) {
+		for (int i = 0; i < neighbourhood.length; i++)
+			ocean.setField(cx-RADIUS+i%(2*RADIUS+1),
+					cy-RADIUS+i/(2*RADIUS+1), neighbourhood[i]);
+		ocean.setField(cx, cy, centre);
+	}
+
+}
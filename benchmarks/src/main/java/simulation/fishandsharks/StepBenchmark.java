@@ -0,0 +1,76 @@
+/*
+ * Copyright 2013 maxstrauch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package simulation.fishandsharks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks whole generations. The ocean is filled anew before every
+ * iteration, so each iteration covers the same stretch of the population
+ * dynamics.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StepBenchmark {
+
+	@Param({"120", "500", "2000"})
+	public int size;
+
+	@Param({"0.1", "0.5"})
+	public double density;
+
+	@Param({"false", "true"})
+	public boolean parallel;
+
+	private SharkFishModel model;
+
+	@Setup(Level.Iteration)
+	public void setUp() {
+		model = new SharkFishModel(size, size);
+		model.setParallel(parallel);
+		model.fillOceanRandomly(density*2/3, density/3);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		model.setParallel(false);
+	}
+
+	@Benchmark
+	public SharkFishModel step() {
+		model.step();
+		return model;
+	}
+
+}
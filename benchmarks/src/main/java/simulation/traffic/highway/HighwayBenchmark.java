@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 maxstrauch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package simulation.traffic.highway;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks a step of the cell-based {@link HighwaySimulation} against
+ * the {@link HighwayParticles} on the same road, and a step of 64
+ * {@link HighwayReplicas} of it
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HighwayBenchmark {
+
+	/**
+	 * 100 km at 7.5 m per cell and a ten times longer road
+	 */
+	@Param({"13334", "133334"})
+	public int length;
+
+	@Param({"0.01", "0.1"})
+	public double density;
+
+	private HighwaySimulation cells;
+
+	private HighwayParticles particles;
+
+	private HighwayReplicas replicas;
+
+	@Setup(Level.Iteration)
+	public void setUp() {
+		System.setProperty("java.awt.headless", "true");
+		Random r = new Random(42);
+
+		cells = new HighwaySimulation(length);
+		cells.setSeed(42);
+		cells.setCarLinger(.15);
+		cells.setTrafficLightRedProb(.1);
+		cells.setTrafficLightRedTime(3);
+		for (int p = 0; p < length; p++) {
+			if (r.nextDouble() < density)
+				cells.place(p, HighwayCell.Car.class);
+			if (p%1000 == 0)
+				cells.place(p, HighwayCell.TrafficLight.class);
+		}
+
+		particles = new HighwayParticles(cells);
+		replicas = new HighwayReplicas(cells);
+	}
+
+	@Benchmark
+	public HighwaySimulation cells() {
+		cells.step();
+		return cells;
+	}
+
+	@Benchmark
+	public HighwayParticles particles() {
+		particles.step();
+		return particles;
+	}
+
+	@Benchmark
+	public HighwayReplicas replicas() {
+		replicas.step();
+		return replicas;
+	}
+
+}
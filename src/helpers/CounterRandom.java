@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 maxstrauch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package helpers;
+
+import java.util.Random;
+
+/**
+ * A counter-based random generator: every number is a hash of the seed
+ * and a key chosen by the caller, e.g. the generation and the cell. It has
+ * no mutable state, so any number of threads can draw from it without
+ * contention, and a run can be repeated exactly from the seed no matter
+ * in which order or on which thread the numbers are drawn.
+ */
+public class CounterRandom {
+
+	private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+	private final long seed;
+
+	public CounterRandom() {
+		this(new Random().nextLong());
+	}
+
+	public CounterRandom(long seed) {
+		this.seed = seed;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Returns the random number for the given key and draw
+	 */
+	public long nextLong(long key, int draw) {
+		return mix(mix(key ^ seed) + GOLDEN*(draw+1));
+	}
+
+	/**
+	 * Returns a uniformly distributed number in <code>[0, bound)</code>
+	 */
+	public int nextInt(long key, int draw, int bound) {
+		return (int) (((nextLong(key, draw) >>> 32)*bound) >>> 32);
+	}
+
+	/**
+	 * Returns a uniformly distributed number in <code>[0, 1)</code>
+	 */
+	public double nextDouble(long key, int draw) {
+		return (nextLong(key, draw) >>> 11)*0x1.0p-53;
+	}
+
+	/**
+	 * Combines two numbers, e.g. a generation and a position, to a key
+	 */
+	public static long key(int a, int b) {
+		return ((long) a << 32) | (b & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * The finalizer of the SplitMix64 generator
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30))*0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27))*0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+}
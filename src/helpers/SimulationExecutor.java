@@ -0,0 +1,337 @@
+/*
+ * Copyright 2013 maxstrauch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package helpers;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Runs the steps of a simulation on a thread of its own, so that a slow
+ * step does not block the event dispatch thread. After every step the
+ * simulation returns an immutable frame, which is handed to the event
+ * dispatch thread through a single slot: if the GUI falls behind, older
+ * frames are replaced by newer ones instead of queuing up.
+ * <p>
+ * At maximum speed the simulation is stepped as fast as possible and a
+ * frame is taken only a few times per second. The number of steps between
+ * two frames is adapted to the measured duration of a step, of taking a
+ * frame and of delivering it to the event dispatch thread.
+ * <p>
+ * A frame is therefore a picture of some step, not a record of all of
+ * them; see {@link Simulation#step()}.
+ * <p>
+ * Changes of the simulation, like placing a creature with the mouse, are
+ * passed to {@link #execute(Runnable)} and run between two steps, so the
+ * event dispatch thread never waits for a step to finish. Frames which
+ * arrive after {@link #shutdown()} are dropped.
+ */
+public class SimulationExecutor<F> implements Executor {
+
+	/**
+	 * A simulation which is stepped by the executor
+	 */
+	public interface Simulation<F> {
+
+		/**
+		 * Performs a step on the thread of the executor. Frames are taken
+		 * only now and then and may be dropped, so anything which has to
+		 * be recorded for every step, like a history of counts, is
+		 * recorded here.
+		 */
+		void step();
+
+		/**
+		 * Returns an immutable frame of the current state
+		 */
+		F getFrame();
+
+	}
+
+	/**
+	 * Receives the frames on the event dispatch thread
+	 */
+	public interface FrameListener<F> {
+
+		void frameReady(F frame);
+
+	}
+
+	/**
+	 * The weight of a new measurement in the moving averages
+	 */
+	private static final double WEIGHT = .2;
+
+	private static final int MAX_SPEED = -1, MAX_STEPS_PER_FRAME = 1 << 20;
+
+	private static final Runnable NOTHING = new Runnable() {
+
+		@Override
+		public void run() { }
+
+	};
+
+	private final String name;
+
+	private final Simulation<F> simulation;
+
+	private final FrameListener<F> listener;
+
+	private final AtomicReference<F> slot = new AtomicReference<F>();
+
+	private final Runnable deliver = new Runnable() {
+
+		@Override
+		public void run() {
+			F frame = slot.getAndSet(null);
+			if (frame == null || shutdown)
+				return;
+			listener.frameReady(frame);
+
+			// The painting itself happens later in a repaint, but the time
+			// the frame waited includes the events before it, e.g. the
+			// painting of the previous frames
+			long now = System.nanoTime();
+			deliveryTime = average(deliveryTime, now-published);
+		}
+
+	};
+
+	private Thread thread;
+
+	private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+
+	private volatile boolean shutdown;
+
+	private volatile int rate;
+
+	private int pending, framesPerSecond;
+
+	/**
+	 * The time from publishing a frame until the listener returned
+	 */
+	private volatile long published, deliveryTime;
+
+	private double stepTime, frameTime;
+
+	private volatile int stepsPerFrame = 1;
+
+	public SimulationExecutor(String name, Simulation<F> simulation,
+			FrameListener<F> listener) {
+		this.name = name;
+		this.simulation = simulation;
+		this.listener = listener;
+	}
+
+	/**
+	 * Steps the simulation continuously with the given number of steps
+	 * per second
+	 */
+	public synchronized void start(int stepsPerSecond) {
+		if (stepsPerSecond < 1)
+			throw new IllegalArgumentException();
+
+		rate = stepsPerSecond;
+		wakeUp();
+	}
+
+	/**
+	 * Stops stepping continuously; a step in progress is finished
+	 */
+	public synchronized void stop() {
+		rate = 0;
+	}
+
+	/**
+	 * Steps the simulation as fast as possible and delivers about the
+	 * given number of frames per second
+	 */
+	public synchronized void startMaxSpeed(int framesPerSecond) {
+		if (framesPerSecond < 1)
+			throw new IllegalArgumentException();
+
+		this.framesPerSecond = framesPerSecond;
+		rate = MAX_SPEED;
+		wakeUp();
+	}
+
+	public boolean isRunning() {
+		return rate != 0;
+	}
+
+	/**
+	 * Returns the number of steps between the last two frames
+	 */
+	public int getStepsPerFrame() {
+		return stepsPerFrame;
+	}
+
+	/**
+	 * Performs a single step
+	 */
+	public synchronized void step() {
+		pending++;
+		wakeUp();
+	}
+
+	/**
+	 * Runs the given task on the thread of this executor before the next
+	 * step and publishes a frame afterwards
+	 */
+	@Override
+	public synchronized void execute(Runnable task) {
+		if (task == null)
+			throw new NullPointerException();
+
+		tasks.add(task);
+		wakeUp();
+	}
+
+	/**
+	 * Publishes a frame of the current state without a step
+	 */
+	public void refresh() {
+		execute(NOTHING);
+	}
+
+	/**
+	 * Stops the thread of this executor for good; tasks which did not run
+	 * yet are discarded
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		rate = pending = 0;
+		tasks.clear();
+		if (thread != null)
+			thread.interrupt();
+		thread = null;
+	}
+
+	private void wakeUp() {
+		if (shutdown)
+			return;
+		if (thread == null) {
+			thread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					loop();
+				}
+
+			}, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		notifyAll();
+	}
+
+	private void loop() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				int stepsPerSecond, fps;
+				Runnable task;
+
+				synchronized (this) {
+					while (rate == 0 && pending == 0 && tasks.isEmpty())
+						wait();
+					task = tasks.poll();
+					if (task == null && pending > 0)
+						pending--;
+					stepsPerSecond = rate;
+					fps = framesPerSecond;
+				}
+
+				if (task != null) {
+					task.run();
+					publish(simulation.getFrame());
+					continue;
+				}
+
+				if (stepsPerSecond == MAX_SPEED) {
+					runMaxSpeed(fps);
+					continue;
+				}
+
+				long start = System.nanoTime();
+				simulation.step();
+				stepsPerFrame = 1;
+				publish(simulation.getFrame());
+
+				if (stepsPerSecond > 0) {
+					long delay = TimeUnit.SECONDS.toNanos(1)/stepsPerSecond-
+							(System.nanoTime()-start);
+					if (delay > 0)
+						TimeUnit.NANOSECONDS.sleep(delay);
+				}
+			}
+		} catch (InterruptedException e) {
+			// Shut down
+		}
+	}
+
+	/**
+	 * Performs as many steps as fit into the time of a frame, which is
+	 * at least the time it takes to deliver one, and publishes a frame of
+	 * the last of them only
+	 */
+	private void runMaxSpeed(int fps) {
+		long frame = Math.max(TimeUnit.SECONDS.toNanos(1)/fps, deliveryTime);
+		long estimate = stepTime == 0 ? 1 : (long) ((frame-frameTime)/stepTime);
+		int steps = (int) Math.max(1, Math.min(MAX_STEPS_PER_FRAME, estimate));
+
+		long start = System.nanoTime();
+		int done = 0;
+		while (done < steps && rate == MAX_SPEED) {
+			simulation.step();
+			done++;
+		}
+
+		// The rate may have changed before the first step
+		if (done == 0)
+			return;
+		long now = System.nanoTime();
+		stepTime = average(stepTime, (now-start)/(double) done);
+
+		stepsPerFrame = done;
+		publish(simulation.getFrame());
+		frameTime = average(frameTime, System.nanoTime()-now);
+	}
+
+	private static double average(double average, double value) {
+		return average == 0 ? value : average+WEIGHT*(value-average);
+	}
+
+	private static long average(long average, long value) {
+		return (long) average((double) average, (double) value);
+	}
+
+	/**
+	 * Puts a frame into the slot; only if the slot was empty the event
+	 * dispatch thread has to be woken up, otherwise the frame waiting
+	 * there is dropped together with the steps it covered
+	 */
+	private void publish(F frame) {
+		if (slot.getAndSet(frame) == null) {
+			published = System.nanoTime();
+			SwingUtilities.invokeLater(deliver);
+		}
+	}
+
+}
@@ -15,10 +15,14 @@
  */
 package simulation;
 
+import java.util.Arrays;
+
 import javax.swing.JFrame;
 import javax.swing.JTabbedPane;
 import javax.swing.UIManager;
 
+import simulation.fishandsharks.SharkFishBatch;
+import simulation.fishandsharks.SharkFishEnsemble;
 import simulation.fishandsharks.SharkFishSimulationGui;
 import simulation.traffic.TrafficSimulation;
 
@@ -47,7 +51,17 @@ public class SimulationMain {
         frame.setVisible(true);
     }
  
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+    	// Run the Wa-Tor simulation without a GUI
+    	if (args.length > 0 && "batch".equals(args[0])) {
+    		SharkFishBatch.main(Arrays.copyOfRange(args, 1, args.length));
+    		return;
+    	}
+    	if (args.length > 0 && "ensemble".equals(args[0])) {
+    		SharkFishEnsemble.main(Arrays.copyOfRange(args, 1, args.length));
+    		return;
+    	}
+    	
     	// Some LaF stuff ...
     	System.setProperty("com.apple.mrj.application." +
     			"apple.menu.about.name", "Wa-Tor & traffic simulation");
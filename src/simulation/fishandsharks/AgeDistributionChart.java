@@ -19,7 +19,6 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Rectangle;
-import java.util.Map;
 
 import javax.swing.JComponent;
 
@@ -33,10 +32,12 @@ public class AgeDistributionChart extends JComponent {
 	
 	private Color[] colors;
 	
-	private Map<Integer, int[]> data;
+	private int[][] data;
 	
 	private int[] biggest;
 	
+	private int ages;
+	
 	public AgeDistributionChart(Color[] colors) {
 		setPreferredSize(new Dimension(201, 150));
 		setMinimumSize(getPreferredSize());
@@ -44,28 +45,28 @@ public class AgeDistributionChart extends JComponent {
 		this.colors = colors;
 	}
 	
-	public void setData(Map<Integer, int[]> data) {
+	/**
+	 * Sets the age distribution to display: <code>data[i][age]</code> is
+	 * the number of individuals of the kind <code>i</code> with this age
+	 */
+	public void setData(int[][] data) {
+		if (data.length != 2)
+			throw new IllegalArgumentException();
+		
 		this.data = data;
-		this.biggest = null;
+		this.biggest = new int[data.length];
+		this.ages = 0;
 		
-		for (Integer key : data.keySet()) {
-			int[] dataEntry = data.get(key);
-			
-			if (dataEntry.length != 2)
-				throw new IllegalArgumentException();
+		for (int age = 0; age < data[0].length; age++) {
+			if (data[0][age] == 0 && data[1][age] == 0)
+				continue;
 			
-			if (biggest == null) {
-				biggest = dataEntry.clone();
-			} else {
-				
-				for (int i = 0; i < dataEntry.length; i++) {
-					if (dataEntry[i] > biggest[i]) {
-						biggest[i] = dataEntry[i];
-					}
+			ages++;
+			for (int i = 0; i < data.length; i++) {
+				if (data[i][age] > biggest[i]) {
+					biggest[i] = data[i][age];
 				}
-				
 			}
-			
 		}
 		
 		repaint();
@@ -85,24 +86,26 @@ public class AgeDistributionChart extends JComponent {
 		dims[1] = new Rectangle(dims[0].x, dims[0].y+dims[0].height+1, 
 				dims[0].width, -1);
 		
-		if (data != null) {
+		if (data != null && ages > 0) {
 			int wWidth = (int) Math.round(Math.floor(((float) dims[0].width)/
-					((float) data.size())));
+					((float) ages)));
 			wWidth = wWidth < 1 ? 1 : wWidth;
 			
 			int x0 = 0, h0, cnt = 0;
-			for (Integer age : data.keySet()) {
-				int[] entry = data.get(age);
+			for (int age = 0; age < data[0].length; age++) {
+				if (data[0][age] == 0 && data[1][age] == 0)
+					continue;
 				
-				if (cnt == data.size()-1) {
+				if (cnt == ages-1) {
 					wWidth = dims[0].width-x0;
 					if (wWidth < 1)
 						continue;
 				}
 
-				for (int i = 0; i < entry.length; i++) {
+				for (int i = 0; i < data.length; i++) {
 					g.setColor(colors[i]);
-					h0 = Math.round((((float) entry[i])/((float) biggest[i]))*dims[0].height);
+					h0 = biggest[i] == 0 ? 0 : Math.round((((float) 
+							data[i][age])/((float) biggest[i]))*dims[0].height);
 					g.fillRect(dims[0].x+x0, dims[i].height < 0 ? dims[i].y : 
 						dims[i].y+dims[i].height-h0, wWidth, h0);
 				}
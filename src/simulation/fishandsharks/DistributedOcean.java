@@ -0,0 +1,367 @@
+/*
+ * Copyright 2013 maxstrauch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package simulation.fishandsharks;
+
+import helpers.CounterRandom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coordinates a Wa-Tor simulation whose ocean is split into strips of
+ * rows, each of which is owned by a separate {@link OceanWorker} process.
+ * Together the workers hold the ocean in a memory-mapped file in the
+ * layout of an {@link OceanCheckpoint}, through which they exchange the
+ * two rows at the border of their strips.
+ * <p>
+ * A generation has two phases: first every worker updates the upper half
+ * of its strip, then the lower half. A creature reaches at most two rows
+ * away, so the halves updated at the same time never touch the same rows
+ * as long as a strip has at least {@link #MIN_ROWS} rows. Between the
+ * phases the coordinator synchronizes the workers over local sockets and
+ * finally collects the population counts.
+ */
+public class DistributedOcean implements Closeable {
+
+	public static final int MIN_ROWS = 8;
+
+	/**
+	 * Commands of the coordinator and replies of the workers
+	 */
+	static final int STEP = 1, STORE = 2, STOP = 3, DONE = 4;
+
+	/**
+	 * The milliseconds to wait for a worker to connect, to answer or to 
+	 * exit
+	 */
+	private static final int TIMEOUT = 60000;
+
+	private final int width, height, workers;
+
+	private Path file;
+
+	private boolean restored;
+
+	private int generation, fishRebornCycle = 2, sharkRebornCycle = 3,
+			fishCnt, sharkCnt;
+
+	private int[][] ages = new int[2][0];
+
+	private long seed = new CounterRandom().getSeed();
+
+	private Process[] processes;
+
+	private DataInputStream[] in;
+
+	private DataOutputStream[] out;
+
+	public DistributedOcean(int width, int height, int workers) {
+		if (width < 1 || workers < 1 || height < workers*MIN_ROWS)
+			throw new IllegalArgumentException("An ocean of " + height +
+					" rows can not be split into " + workers + " strips");
+
+		this.width = width;
+		this.height = height;
+		this.workers = workers;
+	}
+
+	/**
+	 * Prepares to continue from a checkpoint; the checkpoint itself is
+	 * not changed
+	 */
+	public static DistributedOcean restore(Path checkpoint, int workers)
+			throws IOException {
+		OceanCheckpoint.Header h;
+		FileChannel channel = FileChannel.open(checkpoint, 
+				StandardOpenOption.READ);
+		try {
+			h = OceanCheckpoint.Header.read(channel, checkpoint);
+		} finally {
+			channel.close();
+		}
+
+		DistributedOcean o = new DistributedOcean(h.width, h.height, workers);
+		o.file = Files.createTempFile("wator", ".bin");
+		Files.copy(checkpoint, o.file, StandardCopyOption.REPLACE_EXISTING);
+		o.restored = true;
+		o.generation = h.generation;
+		o.fishRebornCycle = h.fishCycle;
+		o.sharkRebornCycle = h.sharkCycle;
+		o.seed = h.seed;
+		return o;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public void notifyRecycleChanged(int fishCycle, int sharkCycle) {
+		this.fishRebornCycle = fishCycle;
+		this.sharkRebornCycle = sharkCycle;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	public int getFishCount() {
+		return fishCnt;
+	}
+
+	public int getSharkCount() {
+		return sharkCnt;
+	}
+
+	public int getEmptyCount() {
+		return width*height-fishCnt-sharkCnt;
+	}
+
+	/**
+	 * @see Population#getAgeDistribution()
+	 */
+	public int[][] getAgeDistribution() {
+		return ages;
+	}
+
+	/**
+	 * Starts the worker processes; a new ocean is filled with the given
+	 * densities, a restored one keeps its creatures
+	 */
+	public void start(double fishes, double sharks) throws IOException {
+		if (file == null) {
+			file = Files.createTempFile("wator", ".bin");
+			RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+			try {
+				raf.setLength(OceanCheckpoint.HEADER_SIZE +
+						(long) width*height*OceanCheckpoint.RECORD_SIZE);
+			} finally {
+				raf.close();
+			}
+		}
+		writeHeader();
+
+		// Every worker fills its strip as part of exactly these numbers
+		long n = (long) width*height;
+		int fish = (int) Math.max(0, Math.min(n, Math.round(n*fishes)));
+		int shark = (int) Math.max(0, Math.min(n-fish, Math.round(n*sharks)));
+
+		ServerSocket server = new ServerSocket(0, workers,
+				InetAddress.getLoopbackAddress());
+		try {
+			server.setSoTimeout(TIMEOUT);
+
+			String java = System.getProperty("java.home") + File.separator +
+					"bin" + File.separator + "java";
+			processes = new Process[workers];
+			for (int i = 0; i < workers; i++)
+				processes[i] = new ProcessBuilder(java, "-cp",
+						System.getProperty("java.class.path"),
+						OceanWorker.class.getName(),
+						String.valueOf(server.getLocalPort())).inheritIO()
+						.start();
+
+			// The strips are handed out in the order the workers connect
+			in = new DataInputStream[workers];
+			out = new DataOutputStream[workers];
+			for (int i = 0; i < workers; i++) {
+				Socket s = server.accept();
+				s.setTcpNoDelay(true);
+				s.setSoTimeout(TIMEOUT);
+				in[i] = new DataInputStream(new BufferedInputStream(
+						s.getInputStream()));
+				out[i] = new DataOutputStream(new BufferedOutputStream(
+						s.getOutputStream()));
+
+				out[i].writeUTF(file.toString());
+				out[i].writeInt(width);
+				out[i].writeInt(height);
+				out[i].writeInt(i*height/workers);
+				out[i].writeInt((i+1)*height/workers);
+				out[i].writeInt(generation);
+				out[i].writeInt(fishRebornCycle);
+				out[i].writeInt(sharkRebornCycle);
+				out[i].writeLong(seed);
+				out[i].writeBoolean(!restored);
+				out[i].writeInt(fish);
+				out[i].writeInt(shark);
+				out[i].flush();
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		} finally {
+			server.close();
+		}
+
+		collect();
+	}
+
+	public void step() throws IOException {
+		send(STEP);
+
+		// Both halves of the strips
+		for (int phase = 0; phase < 2; phase++) {
+			for (DataInputStream i : in)
+				expect(i, DONE);
+			send(DONE);
+		}
+
+		generation++;
+		collect();
+	}
+
+	/**
+	 * Writes a checkpoint of the current generation
+	 */
+	public void save(Path checkpoint) throws IOException {
+		send(STORE);
+		for (DataInputStream i : in)
+			expect(i, DONE);
+
+		writeHeader();
+		Files.copy(file, checkpoint, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Stops the workers and removes the shared file
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (out != null) {
+				for (DataOutputStream o : out) {
+					if (o == null)
+						continue;
+					try {
+						o.writeInt(STOP);
+						o.close();
+					} catch (IOException e) {
+						// The worker is gone already
+					}
+				}
+			}
+
+			if (processes != null) {
+				for (Process p : processes) {
+					try {
+						if (!p.waitFor(TIMEOUT, TimeUnit.MILLISECONDS))
+							p.destroyForcibly();
+					} catch (InterruptedException e) {
+						p.destroyForcibly();
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		} finally {
+			out = null;
+			processes = null;
+			if (file != null)
+				Files.deleteIfExists(file);
+			file = null;
+		}
+	}
+
+	private void send(int command) throws IOException {
+		for (DataOutputStream o : out) {
+			o.writeInt(command);
+			o.flush();
+		}
+	}
+
+	private static void expect(DataInputStream in, int reply)
+			throws IOException {
+		if (in.readInt() != reply)
+			throw new IOException("Protocol error");
+	}
+
+	/**
+	 * Sums the age distributions of all strips
+	 */
+	private void collect() throws IOException {
+		int[][] sum = new int[2][0];
+
+		for (DataInputStream i : in) {
+			int n = i.readInt();
+			if (n > sum[0].length) {
+				int[][] grown = new int[2][n];
+				for (int s = 0; s < 2; s++)
+					System.arraycopy(sum[s], 0, grown[s], 0, sum[s].length);
+				sum = grown;
+			}
+
+			for (int s = 0; s < 2; s++)
+				for (int a = 0; a < n; a++)
+					sum[s][a] += i.readInt();
+		}
+
+		fishCnt = sharkCnt = 0;
+		for (int a = 0; a < sum[0].length; a++) {
+			fishCnt += sum[Population.FISH][a];
+			sharkCnt += sum[Population.SHARK][a];
+		}
+		ages = sum;
+	}
+
+	private void writeHeader() throws IOException {
+		OceanCheckpoint.Header h = new OceanCheckpoint.Header();
+		h.width = width;
+		h.height = height;
+		h.generation = generation;
+		h.fishCycle = fishRebornCycle;
+		h.sharkCycle = sharkRebornCycle;
+		h.seed = seed;
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(OceanCheckpoint.HEADER_SIZE);
+			h.write(buf);
+			buf.flip();
+			channel.write(buf, 0);
+		} finally {
+			channel.close();
+		}
+	}
+
+}
@@ -15,9 +15,13 @@
  */
 package simulation.fishandsharks;
 
+import helpers.CounterRandom;
+
 import java.awt.Color;
 import java.awt.Point;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
 
 
 public class Ocean {
@@ -25,31 +29,268 @@ public class Ocean {
 	public static final Point[] NEIGHBOUR_MASK = {
 			new Point(0, -1), new Point(1, 0), new Point(0, 1), new Point(-1, 0)
 	};
+	
+	/**
+	 * Distance from the ocean up to which coordinates are wrapped by a 
+	 * table lookup; a creature never reaches further than two cells
+	 */
+	private static final int PAD = 2;
+	
+	/**
+	 * Bit planes of the ocean, see {@link #getWord(int, int, int)}
+	 */
+	public static final int PLANE_EMPTY = 0, PLANE_FISH = 1, PLANE_SHARK = 2;
+	
+	/**
+	 * The cells are stored in tiles of this size, so that the neighbours
+	 * of a cell are mostly close to it in memory; a tile is as wide as a
+	 * word of the bit planes
+	 */
+	public static final int TILE_WIDTH = 64, TILE_HEIGHT = 8;
 		
-	private Cell[][] ocean;
-	private int width, height;
+	private Cell[] ocean;
+	private int width, height, words;
+	private int[] columns, rows, columnOffsets, rowOffsets;
+	private long[] fishPlane, sharkPlane;
+	/**
+	 * The rows whose colours changed, see {@link #takeDirty(int)}
+	 */
+	private boolean[] dirty;
+	private Population population;
+	private CounterRandom random;
+	/**
+	 * The neighbour words of the word the creatures are updated in, see
+	 * {@link #prepareNeighbourWords(int, int)}
+	 */
+	private int preparedRow = -1, preparedWord;
+	private final long[] freeWords = new long[4], fishWords = new long[4];
 	
 	public Ocean(int width, int height) {
 		if (width < 1 || height < 1)
 			throw new IllegalArgumentException();
 		
-		this.ocean = new Cell[height][width];
 		this.width = width;
 		this.height = height;
+		this.words = (width+63)/64;
+		this.fishPlane = new long[height*words];
+		this.sharkPlane = new long[height*words];
 		
-		for (int j = 0; j < ocean.length; j++) {
-			for (int i = 0; i < ocean[j].length; i++) {
-				ocean[j][i] = null;
-			}
-		}
+		// Pre-compute the wrap-around of all coordinates near the ocean
+		this.columns = new int[width+2*PAD];
+		for (int i = 0; i < columns.length; i++)
+			columns[i] = (width+((i-PAD)%width))%width;
+		this.rows = new int[height+2*PAD];
+		for (int i = 0; i < rows.length; i++)
+			rows[i] = (height+((i-PAD)%height))%height;
+		
+		// The index of a cell is the sum of the offsets of its column and
+		// its row
+		int tileSize = TILE_WIDTH*TILE_HEIGHT;
+		this.columnOffsets = new int[width];
+		for (int i = 0; i < width; i++)
+			columnOffsets[i] = i/TILE_WIDTH*tileSize + i%TILE_WIDTH;
+		this.rowOffsets = new int[height];
+		for (int j = 0; j < height; j++)
+			rowOffsets[j] = j/TILE_HEIGHT*words*tileSize + 
+				j%TILE_HEIGHT*TILE_WIDTH;
+		this.ocean = new Cell[(height+TILE_HEIGHT-1)/TILE_HEIGHT*words*
+		                      tileSize];
+		this.dirty = new boolean[height];
+		Arrays.fill(dirty, true);
+		
+		population = new Population();
+		random = new CounterRandom();
+	}
+	
+	/**
+	 * Creates a view on the cells of another ocean which collects the 
+	 * population changes made through it separately, so that they can be
+	 * merged later on
+	 */
+	private Ocean(Ocean o) {
+		this.ocean = o.ocean;
+		this.width = o.width;
+		this.height = o.height;
+		this.words = o.words;
+		this.fishPlane = o.fishPlane;
+		this.sharkPlane = o.sharkPlane;
+		this.dirty = o.dirty;
+		this.columns = o.columns;
+		this.rows = o.rows;
+		this.columnOffsets = o.columnOffsets;
+		this.rowOffsets = o.rowOffsets;
+		this.population = new Population();
+		this.random = o.random;
+	}
+	
+	public Ocean createView() {
+		return new Ocean(this);
+	}
+	
+	public Population getPopulation() {
+		return population;
+	}
+	
+	public CounterRandom getRandom() {
+		return random;
+	}
+	
+	/**
+	 * Sets the source of all random decisions of the creatures; views 
+	 * created before keep the former source
+	 */
+	public void setRandom(CounterRandom random) {
+		this.random = random;
+	}
+	
+	/**
+	 * Returns the key for the random decisions of the creature which is
+	 * updated at the given cell in the given generation
+	 */
+	public long getKey(int x, int y, int generation) {
+		return CounterRandom.key(generation, wrapY(y)*width+wrapX(x));
 	}
 	
 	public Cell setField(int x, int y, Cell value) {
-		return ocean[(height+(y%height))%height][(width+(x%width))%width] = value;
+		y = wrapY(y);
+		x = wrapX(x);
+		int i = rowOffsets[y]+columnOffsets[x];
+		
+		if (ocean[i] != null)
+			population.remove(ocean[i]);
+		if (value != null)
+			population.add(value);
+		
+		// Keep the bit planes in sync
+		int w = y*words+(x >>> 6);
+		fishPlane[w] &= ~(1L << x);
+		sharkPlane[w] &= ~(1L << x);
+		if (value instanceof Fish)
+			fishPlane[w] |= 1L << x;
+		else if (value instanceof Shark)
+			sharkPlane[w] |= 1L << x;
+		
+		if (preparedRow >= 0)
+			updateNeighbourWords(x, y, value == null, value instanceof Fish);
+		
+		dirty[y] = true;
+		return ocean[i] = value;
+	}
+	
+	/**
+	 * Returns whether a cell of the row <code>y</code> changed its colour
+	 * since the last call for this row
+	 */
+	boolean takeDirty(int y) {
+		boolean d = dirty[y];
+		dirty[y] = false;
+		return d;
+	}
+	
+	private void markDirty(int y) {
+		dirty[wrapY(y)] = true;
+	}
+	
+	/**
+	 * Replaces all creatures by exactly the given number of fish and
+	 * sharks born in the given generation on random cells; the tiles are
+	 * filled in parallel if a pool is given
+	 */
+	public void fillRandomly(int fish, int sharks, final int generation,
+			ForkJoinPool pool) {
+		final int tileRows = (height+TILE_HEIGHT-1)/TILE_HEIGHT;
+		long[] offsets = new long[tileRows*words+1];
+		for (int t = 0; t < offsets.length-1; t++)
+			offsets[t+1] = offsets[t]+tileWidth(t%words)*tileHeight(t/words);
+
+		new RandomFill(new CounterRandom(random.nextLong(
+				CounterRandom.key(generation, -1), 0)), new RandomFill.Tiles() {
+
+			@Override
+			public void fill(int tile, int[] cells, int fish, int sharks) {
+				int tx = tile%words, ty = tile/words, w = tileWidth(tx);
+				int x0 = tx*TILE_WIDTH, y0 = ty*TILE_HEIGHT;
+
+				// A tile holds the same columns as a word of the planes
+				for (int y = y0; y < y0+tileHeight(ty); y++) {
+					dirty[y] = true;
+					fishPlane[y*words+tx] = sharkPlane[y*words+tx] = 0;
+					for (int x = x0; x < x0+w; x++)
+						ocean[rowOffsets[y]+columnOffsets[x]] = null;
+				}
+
+				for (int j = 0; j < fish+sharks; j++) {
+					int x = x0+cells[j]%w, y = y0+cells[j]/w;
+					Cell c = j < fish ? new Fish() : new Shark();
+					c.setGeneration(generation);
+					ocean[rowOffsets[y]+columnOffsets[x]] = c;
+					if (j < fish)
+						fishPlane[y*words+tx] |= 1L << x;
+					else
+						sharkPlane[y*words+tx] |= 1L << x;
+				}
+			}
+
+		}, offsets, fish, sharks).run(pool);
+
+		population.reset(fish, sharks);
+		releaseNeighbourWords();
+	}
+
+	private int tileWidth(int tx) {
+		return Math.min(TILE_WIDTH, width-tx*TILE_WIDTH);
+	}
+
+	private int tileHeight(int ty) {
+		return Math.min(TILE_HEIGHT, height-ty*TILE_HEIGHT);
+	}
+	
+	/**
+	 * Returns the first column <code>&gt;= x</code> of the row <code>y
+	 * </code> which holds a creature or <code>-1</code> if there is none;
+	 * the row must be in the range <code>[0, height)</code>
+	 */
+	public int nextOccupied(int x, int y) {
+		return nextOccupied(x, y, width);
+	}
+	
+	/**
+	 * Like {@link #nextOccupied(int, int)} but only searches the columns
+	 * before <code>end</code>. The bit planes are not owned by stripes:
+	 * creatures in the border rows of a stripe write into the rows of the
+	 * neighbouring stripes, see {@link SharkFishModel#step()}.
+	 */
+	public int nextOccupied(int x, int y, int end) {
+		if (x >= end)
+			return -1;
+		
+		int w = x >>> 6, base = y*words;
+		long bits = (fishPlane[base+w] | sharkPlane[base+w]) & (-1L << x);
+		
+		while (bits == 0) {
+			if (++w<<6 >= end)
+				return -1;
+			bits = fishPlane[base+w] | sharkPlane[base+w];
+		}
+		
+		x = (w << 6) + Long.numberOfTrailingZeros(bits);
+		return x < end ? x : -1;
 	}
 
 	public Cell getField(int x, int y) {
-		return ocean[(height+(y%height))%height][(width+(x%width))%width];
+		return ocean[rowOffsets[wrapY(y)]+columnOffsets[wrapX(x)]];
+	}
+	
+	private int wrapX(int x) {
+		x += PAD;
+		return x >= 0 && x < columns.length ? columns[x] : 
+			(width+((x-PAD)%width))%width;
+	}
+	
+	private int wrapY(int y) {
+		y += PAD;
+		return y >= 0 && y < rows.length ? rows[y] : 
+			(height+((y-PAD)%height))%height;
 	}
 	
 	public int getWidth() {
@@ -64,9 +305,11 @@ public class Ocean {
 	public String toString() {
 		StringBuffer buf = new StringBuffer();
 		
-		for (int j = 0; j < ocean.length; j++) {
-			for (int i = 0; i < ocean[j].length; i++)
-				buf.append(ocean[j][i] == null ? "." : ocean[j][i]);
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) {
+				Cell c = ocean[rowOffsets[j]+columnOffsets[i]];
+				buf.append(c == null ? "." : c);
+			}
 			buf.append('\n');
 		}
 		
@@ -74,53 +317,199 @@ public class Ocean {
 	}
 
 	public Point[] getFreeNeighbours(int x, int y) {
-		Point[] freeCells = {};
-		Cell cell;
-		
-		for (int i = 0; i < NEIGHBOUR_MASK.length; i++) {
-			Point mask = NEIGHBOUR_MASK[i];
-			cell = getField(x+mask.x, y+mask.y);
-			if (cell == null) {
-				freeCells = Arrays.copyOf(freeCells, freeCells.length+1);
-				freeCells[freeCells.length-1] = new Point(x+mask.x, y+mask.y);
-			}
+		return toPoints(x, y, getFreeNeighbourMask(x, y));
+	}
+	
+	public Point[] getSharkNeighbours(int x, int y) {
+		return toPoints(x, y, getSharkNeighbourMask(x, y));
+	}
+	
+	public Point[] getFishNeighbours(int x, int y) {
+		return toPoints(x, y, getFishNeighbourMask(x, y));
+	}
+	
+	/**
+	 * Returns a 4-bit mask of the empty neighbours of the given cell. Bit 
+	 * <code>i</code> is set if the cell at {@link #NEIGHBOUR_MASK}<code>[i]
+	 * </code> is empty.
+	 */
+	public int getFreeNeighbourMask(int x, int y) {
+		if (isPrepared(x, y))
+			return getPreparedMask(freeWords, wrapX(x));
+		return ~getNeighbourMask(fishPlane, sharkPlane, x, y) & 15;
+	}
+	
+	public int getSharkNeighbourMask(int x, int y) {
+		return getNeighbourMask(sharkPlane, null, x, y);
+	}
+	
+	public int getFishNeighbourMask(int x, int y) {
+		if (isPrepared(x, y))
+			return getPreparedMask(fishWords, wrapX(x));
+		return getNeighbourMask(fishPlane, null, x, y);
+	}
+	
+	/**
+	 * Computes the empty and fish neighbours of the 64 cells of the word
+	 * <code>w</code> of the row <code>y</code> at once with {@link 
+	 * #getNeighbourWord(int, int, int, int)}; the neighbour masks of these
+	 * cells are then read from them. The words are kept up to date by
+	 * {@link #setField(int, int, Cell)} until they are released.
+	 */
+	void prepareNeighbourWords(int y, int w) {
+		for (int d = 0; d < NEIGHBOUR_MASK.length; d++) {
+			freeWords[d] = getNeighbourWord(PLANE_EMPTY, y, w, d);
+			fishWords[d] = getNeighbourWord(PLANE_FISH, y, w, d);
+		}
+		preparedRow = y;
+		preparedWord = w;
+	}
+	
+	/**
+	 * Stops using the prepared neighbour words, e.g. before the bit planes
+	 * are changed through another view
+	 */
+	void releaseNeighbourWords() {
+		preparedRow = -1;
+	}
+	
+	private boolean isPrepared(int x, int y) {
+		return preparedRow >= 0 && wrapY(y) == preparedRow && 
+				wrapX(x) >>> 6 == preparedWord;
+	}
+	
+	private static int getPreparedMask(long[] words, int x) {
+		return (int) (words[0] >>> x) & 1 | 
+				((int) (words[1] >>> x) & 1) << 1 |
+				((int) (words[2] >>> x) & 1) << 2 |
+				((int) (words[3] >>> x) & 1) << 3;
+	}
+	
+	/**
+	 * Sets the bits of the cell <code>(x, y)</code> in the prepared words
+	 * of all cells which have it as a neighbour; a small ocean may be its
+	 * own neighbour in several directions
+	 */
+	private void updateNeighbourWords(int x, int y, boolean empty, 
+			boolean fish) {
+		if (x >>> 6 == preparedWord) {
+			if (y == wrapY(preparedRow-1))
+				setNeighbourBit(0, x, empty, fish);
+			if (y == wrapY(preparedRow+1))
+				setNeighbourBit(2, x, empty, fish);
 		}
 		
-		return freeCells;
+		if (y == preparedRow) {
+			int left = wrapX(x-1), right = wrapX(x+1);
+			if (left >>> 6 == preparedWord)
+				setNeighbourBit(1, left, empty, fish);
+			if (right >>> 6 == preparedWord)
+				setNeighbourBit(3, right, empty, fish);
+		}
 	}
 	
-	public Point[] getSharkNeighbours(int x, int y) {
-		Point[] freeCells = {};
-		Cell cell;
+	private void setNeighbourBit(int d, int x, boolean empty, boolean fish) {
+		long bit = 1L << x;
+		freeWords[d] = empty ? freeWords[d] | bit : freeWords[d] & ~bit;
+		fishWords[d] = fish ? fishWords[d] | bit : fishWords[d] & ~bit;
+	}
+	
+	/**
+	 * Reads the neighbour mask of a cell from one or two bit planes, so
+	 * that no cell object has to be touched
+	 */
+	private int getNeighbourMask(long[] plane, long[] other, int x, int y) {
+		int xc = wrapX(x), row = wrapY(y)*words;
+		
+		return getBit(plane, other, wrapY(y-1)*words, xc) |
+				getBit(plane, other, row, wrapX(x+1)) << 1 |
+				getBit(plane, other, wrapY(y+1)*words, xc) << 2 |
+				getBit(plane, other, row, wrapX(x-1)) << 3;
+	}
+	
+	private static int getBit(long[] plane, long[] other, int row, int x) {
+		int w = row+(x >>> 6);
+		long bits = other == null ? plane[w] : plane[w] | other[w];
+		return (int) (bits >>> x) & 1;
+	}
+	
+	/**
+	 * Returns the number of 64 bit words per row of the bit planes
+	 */
+	public int getWords() {
+		return words;
+	}
+	
+	/**
+	 * Returns the word <code>w</code> of the row <code>y</code> of a bit
+	 * plane; bit <code>i</code> refers to the cell <code>(64*w+i, y)</code>
+	 * and is set if this cell is empty, holds a fish or holds a shark for
+	 * {@link #PLANE_EMPTY}, {@link #PLANE_FISH} and {@link #PLANE_SHARK}.
+	 * The row must be in the range <code>[0, height)</code>
+	 */
+	public long getWord(int plane, int y, int w) {
+		int i = y*words+w;
 		
-		for (int i = 0; i < NEIGHBOUR_MASK.length; i++) {
-			Point mask = NEIGHBOUR_MASK[i];
-			cell = getField(x+mask.x, y+mask.y);
+		switch (plane) {
+		case PLANE_FISH:
+			return fishPlane[i];
+		case PLANE_SHARK:
+			return sharkPlane[i];
+		default:
+			return ~(fishPlane[i] | sharkPlane[i]) & getValidBits(w);
+		}
+	}
+	
+	/**
+	 * Returns the bits of the neighbours in direction {@link 
+	 * #NEIGHBOUR_MASK}<code>[d]</code> of the 64 cells of a word, i.e. bit
+	 * <code>i</code> of the result is the bit of the neighbour of the cell
+	 * <code>(64*w+i, y)</code>, computed with shifts over whole words
+	 */
+	public long getNeighbourWord(int plane, int y, int w, int d) {
+		long bits;
+		
+		switch (d) {
+		case 0:
+			return getWord(plane, wrapY(y-1), w);
+		case 2:
+			return getWord(plane, wrapY(y+1), w);
+		case 1:
+			bits = (getWord(plane, y, w) >>> 1) | 
+				(getWord(plane, y, w+1 == words ? 0 : w+1) << 63);
 			
-			if (cell instanceof Shark) {
-				freeCells = Arrays.copyOf(freeCells, freeCells.length+1);
-				freeCells[freeCells.length-1] = new Point(x+mask.x, y+mask.y);
+			// The right neighbour of the last column is the first one
+			if (w == words-1) {
+				int last = (width-1) & 63;
+				bits = (bits & ~(1L << last)) | 
+					((getWord(plane, y, 0) & 1) << last);
 			}
+			break;
+		default:
+			bits = getWord(plane, y, w) << 1;
+			if (w > 0)
+				bits |= getWord(plane, y, w-1) >>> 63;
+			else
+				bits |= (getWord(plane, y, words-1) >>> ((width-1) & 63)) & 1;
 		}
 		
-		return freeCells;
+		return bits & getValidBits(w);
 	}
 	
-	public Point[] getFishNeighbours(int x, int y) {
-		Point[] freeCells = {};
-		Cell cell;
+	private long getValidBits(int w) {
+		return w < words-1 || (width & 63) == 0 ? -1L : (1L << width)-1;
+	}
+	
+	private static Point[] toPoints(int x, int y, int mask) {
+		Point[] points = new Point[Integer.bitCount(mask)];
 		
-		for (int i = 0; i < NEIGHBOUR_MASK.length; i++) {
-			Point mask = NEIGHBOUR_MASK[i];
-			cell = getField(x+mask.x, y+mask.y);
-			
-			if (cell instanceof Fish) {
-				freeCells = Arrays.copyOf(freeCells, freeCells.length+1);
-				freeCells[freeCells.length-1] = new Point(x+mask.x, y+mask.y);
-			}
+		for (int i = 0, j = 0; i < NEIGHBOUR_MASK.length; i++) {
+			if ((mask & (1 << i)) != 0)
+				points[j++] = new Point(x+NEIGHBOUR_MASK[i].x, 
+						y+NEIGHBOUR_MASK[i].y);
 		}
 		
-		return freeCells;
+		return points;
 	}
 	
 	public static abstract class Cell {
@@ -128,7 +517,8 @@ public class Ocean {
 		public static final Color OCEAN_LIGHT = new Color(0xE5F9FF),
 				OCEAN_DARK = new Color(0xB3ECFF),
 				FISH = new Color(0x3BEB00),
-				SHARK = new Color(0xFF571F);
+				SHARK = new Color(0xFF571F),
+				SHARK_HUNGRY = new Color(0xFFA98F);
 		
 		private int time, age;
 		
@@ -139,15 +529,24 @@ public class Ocean {
 		
 		public void update(Ocean o, int x, int y, int generation, 
 				int fishCycle, int sharkCycle) {
+			age++;
+			o.population.aged(this);
 			internalUpdate(o, x, y, generation, fishCycle, sharkCycle);
 			time++;
-			age++;
 		}
 		
 		public void setGeneration(int time) {
 			this.time = time;
 		}
 		
+		public int getGeneration() {
+			return time;
+		}
+		
+		void setAge(int age) {
+			this.age = age;
+		}
+		
 		public boolean isPending(int generation) {
 			return generation == time;
 		}
@@ -169,32 +568,34 @@ public class Ocean {
 		@Override
 		protected void internalUpdate(Ocean o, int x, int y, int generation, 
 				int fishCycle, int sharkCycle) {
-			Point[] freeNeighbors;
+			int freeNeighbors;
+			long key = o.getKey(x, y, generation);
+			Point d;
 			
 			// Rule 1:
 			// A fish moves randomly to a neighbor field if it's free and
 			// he has regenerated from the last time
-			freeNeighbors = o.getFreeNeighbours(x, y);
-			if (freeNeighbors.length > 0 && generation%fishCycle == 0) {
+			freeNeighbors = o.getFreeNeighbourMask(x, y);
+			if (freeNeighbors != 0 && generation%fishCycle == 0) {
 				// Get the new cell
-				Point newCell = getRandomly(freeNeighbors);
+				d = NEIGHBOUR_MASK[o.pickRandomly(freeNeighbors, key, 0)];
 				
 				// Move this object to the new position
 				o.setField(x, y, null);
-				x = newCell.x;
-				y = newCell.y;
+				x += d.x;
+				y += d.y;
 				o.setField(x, y, this);
 			}
 			
 			// Rule 2:
 			// On a neighbor field which is empty a new fish is born
-			freeNeighbors = o.getFreeNeighbours(x, y);
-			if (freeNeighbors.length > 0) {
+			freeNeighbors = o.getFreeNeighbourMask(x, y);
+			if (freeNeighbors != 0) {
 				// Get the new cell
-				Point newCell = getRandomly(freeNeighbors);
+				d = NEIGHBOUR_MASK[o.pickRandomly(freeNeighbors, key, 1)];
 				
 				// Create the new fish
-				o.setField(newCell.x, newCell.y, new Fish()).time =
+				o.setField(x+d.x, y+d.y, new Fish()).time =
 						super.time + 1;
 			}
 		}
@@ -218,46 +619,52 @@ public class Ocean {
 		@Override
 		protected void internalUpdate(Ocean o, int x, int y, int generation, 
 				int fishCycle, int sharkCycle) {
-			Point[] fishNeighbors;
-			Point[] freeNeighbors;
+			int fishNeighbors, freeNeighbors;
+			long key = o.getKey(x, y, generation);
+			Point d;
 			
 			// Rule 1:
 			// A shark eats all fishes in neighborhood
-			fishNeighbors = o.getFishNeighbours(x, y);
-			for (Point fish : fishNeighbors)
-				o.setField(fish.x, fish.y, null);
+			fishNeighbors = o.getFishNeighbourMask(x, y);
+			for (int i = 0; i < NEIGHBOUR_MASK.length; i++) {
+				if ((fishNeighbors & (1 << i)) != 0)
+					o.setField(x+NEIGHBOUR_MASK[i].x, 
+							y+NEIGHBOUR_MASK[i].y, null);
+			}
 			
 			// Rule 2:
 			// If the shark eats nothing he moves to a free cell
-			freeNeighbors = o.getFreeNeighbours(x, y);
-			if (fishNeighbors.length < 1 && freeNeighbors.length > 0) {
+			freeNeighbors = o.getFreeNeighbourMask(x, y);
+			if (fishNeighbors == 0 && freeNeighbors != 0) {
 				// Get the new cell
-				Point newCell = getRandomly(freeNeighbors);
+				d = NEIGHBOUR_MASK[o.pickRandomly(freeNeighbors, key, 0)];
 				
 				// Move this object to the new position
 				o.setField(x, y, null);
-				x = newCell.x;
-				y = newCell.y;
+				x += d.x;
+				y += d.y;
 				o.setField(x, y, this);
 			}
 			
 			// Rule 3:
 			// On a neighbor field which is empty a new shark is born after
 			// regeneration
-			freeNeighbors = o.getFreeNeighbours(x, y);
-			if (freeNeighbors.length > 0 && generation%sharkCycle == 0) {
+			freeNeighbors = o.getFreeNeighbourMask(x, y);
+			if (freeNeighbors != 0 && generation%sharkCycle == 0) {
 				// Get the new cell
-				Point newCell = getRandomly(freeNeighbors);
+				d = NEIGHBOUR_MASK[o.pickRandomly(freeNeighbors, key, 1)];
 				
 				// Create the new fish
-				o.setField(newCell.x, newCell.y, new Shark()).time =
+				o.setField(x+d.x, y+d.y, new Shark()).time =
 						super.time + 1;
 			}
 			
 			// Rule 4:
 			// A shark dies if he has nothing to eat two times
-			if (fishNeighbors.length < 1)
+			if (fishNeighbors == 0) {
 				lifeIndex--;
+				o.markDirty(y);
+			}
 			if (lifeIndex < 1) {
 				// Remove this shark
 				o.setField(x, y, null);
@@ -266,7 +673,7 @@ public class Ocean {
 		
 		@Override
 		public Color getColor() {
-			return Cell.SHARK;
+			return lifeIndex > 1 ? Cell.SHARK : Cell.SHARK_HUNGRY;
 		}
 		
 		
@@ -277,8 +684,23 @@ public class Ocean {
 		
 	}
 	
+	/**
+	 * Picks one of the set bits of a neighbour mask uniformly and returns
+	 * its index into {@link #NEIGHBOUR_MASK}; <code>key</code> and <code>
+	 * draw</code> select the random number used. Note that the original
+	 * pick with <code>getRandomly</code> preferred the first neighbours,
+	 * so moves and births are spread differently since the masks were
+	 * introduced.
+	 */
+	public int pickRandomly(int mask, long key, int draw) {
+		int n = random.nextInt(key, draw, Integer.bitCount(mask));
+		while (n-- > 0)
+			mask &= mask-1;
+		return Integer.numberOfTrailingZeros(mask);
+	}
+	
 	public static <T> T getRandomly(T[] arr) {
-		int index = (int) Math.round(Math.random()*Math.random()*2*arr.length)%arr.length;
+		int index = ThreadLocalRandom.current().nextInt(arr.length);
 		return arr[index];
 	}
 	
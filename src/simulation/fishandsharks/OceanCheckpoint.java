@@ -0,0 +1,231 @@
+/*
+ * Copyright 2013 maxstrauch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package simulation.fishandsharks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import simulation.fishandsharks.Ocean.Cell;
+import simulation.fishandsharks.Ocean.Fish;
+import simulation.fishandsharks.Ocean.Shark;
+
+/**
+ * Binary checkpoint of a {@link SharkFishModel}. A checkpoint consists of
+ * a header of {@link #HEADER_SIZE} bytes followed by one record of
+ * {@link #RECORD_SIZE} bytes per cell in row-major order:
+ *
+ * <pre>
+ * header: int magic, short version, int width, int height,
+ *         int generation, int fish cycle, int shark cycle, long seed,
+ *         (padding)
+ * record: byte species, byte life index, int generation stamp, int age
+ * </pre>
+ */
+public class OceanCheckpoint {
+
+	public static final int MAGIC = 0x5754434B, VERSION = 1;
+
+	public static final int HEADER_SIZE = 40, RECORD_SIZE = 10;
+
+	public static final byte EMPTY = 0, FISH = 1, SHARK = 2;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * The number of records to map at once
+	 */
+	private static final int CHUNK = 1 << 20;
+
+	private OceanCheckpoint() { }
+
+	public static void write(SharkFishModel model, Path file)
+			throws IOException {
+		Ocean ocean = model.getOcean();
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+
+		try {
+			ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			Header header = new Header();
+			header.width = ocean.getWidth();
+			header.height = ocean.getHeight();
+			header.generation = model.getGeneration();
+			header.fishCycle = model.getFishRebornCycle();
+			header.sharkCycle = model.getSharkRebornCycle();
+			header.seed = model.getSeed();
+			header.write(buf);
+
+			for (int y = 0; y < ocean.getHeight(); y++) {
+				for (int x = 0; x < ocean.getWidth(); x++) {
+					if (buf.remaining() < RECORD_SIZE)
+						drain(buf, channel);
+
+					Cell c = ocean.getField(x, y);
+					if (c == null) {
+						buf.put(EMPTY).put((byte) 0).putInt(0).putInt(0);
+					} else {
+						buf.put(c instanceof Fish ? FISH : SHARK);
+						buf.put((byte) (c instanceof Shark ?
+								((Shark) c).lifeIndex : 0));
+						buf.putInt(c.getGeneration());
+						buf.putInt(c.getAge());
+					}
+				}
+			}
+
+			drain(buf, channel);
+		} finally {
+			channel.close();
+		}
+	}
+
+	public static SharkFishModel read(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+		try {
+			Header header = Header.read(channel, file);
+			int width = header.width, height = header.height;
+
+			SharkFishModel model = new SharkFishModel(width, height);
+			model.setGeneration(header.generation);
+			model.notifyRecycleChanged(header.fishCycle, header.sharkCycle);
+			model.setSeed(header.seed);
+
+			// The records are mapped in chunks since a single mapping is
+			// limited to 2 GB
+			Ocean ocean = model.getOcean();
+			long cells = (long) width*height;
+			MappedByteBuffer buf = null;
+			for (long i = 0; i < cells; i++) {
+				if (buf == null || !buf.hasRemaining())
+					buf = channel.map(MapMode.READ_ONLY, HEADER_SIZE+i*
+							RECORD_SIZE, Math.min(CHUNK, cells-i)*RECORD_SIZE);
+
+				int x = (int) (i%width), y = (int) (i/width);
+				byte species = buf.get(), life = buf.get();
+				int time = buf.getInt(), age = buf.getInt();
+
+				if (species == EMPTY)
+					continue;
+
+				Cell c;
+				if (species == FISH) {
+					c = new Fish();
+				} else if (species == SHARK) {
+					c = new Shark();
+					((Shark) c).lifeIndex = life;
+				} else {
+					throw new IOException("Invalid cell " + x + "," +
+							y + " in " + file);
+				}
+
+				c.setGeneration(time);
+				c.setAge(age);
+				ocean.setField(x, y, c);
+			}
+
+			return model;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * The header of a checkpoint
+	 */
+	static class Header {
+
+		int width, height, generation, fishCycle, sharkCycle;
+
+		long seed;
+
+		/**
+		 * Writes the header and positions the buffer at the first record
+		 */
+		void write(ByteBuffer buf) {
+			int start = buf.position();
+			buf.putInt(MAGIC);
+			buf.putShort((short) VERSION);
+			buf.putInt(width);
+			buf.putInt(height);
+			buf.putInt(generation);
+			buf.putInt(fishCycle);
+			buf.putInt(sharkCycle);
+			buf.putLong(seed);
+			while (buf.position() < start+HEADER_SIZE)
+				buf.put((byte) 0);
+		}
+
+		/**
+		 * Reads the header at the beginning of the file and checks it 
+		 * against the length of the file
+		 */
+		static Header read(FileChannel channel, Path file) 
+				throws IOException {
+			ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+			while (buf.hasRemaining())
+				if (channel.read(buf, buf.position()) < 0)
+					break;
+			buf.flip();
+
+			if (buf.limit() < 6 || buf.getInt(0) != MAGIC)
+				throw new IOException("Not a Wa-Tor checkpoint: " + file);
+			if (buf.getShort(4) != VERSION)
+				throw new IOException("Unsupported checkpoint version " +
+						buf.getShort(4) + ": " + file);
+			if (buf.limit() < HEADER_SIZE)
+				throw new IOException("Truncated checkpoint: " + file);
+
+			Header h = new Header();
+			h.width = buf.getInt(6);
+			h.height = buf.getInt(10);
+			h.generation = buf.getInt(14);
+			h.fishCycle = buf.getInt(18);
+			h.sharkCycle = buf.getInt(22);
+			h.seed = buf.getLong(26);
+
+			if (h.width < 1 || h.height < 1 ||
+					(long) h.width*h.height > Integer.MAX_VALUE)
+				throw new IOException("Invalid ocean size " + h.width + 
+						"x" + h.height + " in " + file);
+			if (h.fishCycle < 1 || h.sharkCycle < 1)
+				throw new IOException("Invalid reborn cycles " + 
+						h.fishCycle + "," + h.sharkCycle + " in " + file);
+			long size = HEADER_SIZE+(long) h.width*h.height*RECORD_SIZE;
+			if (channel.size() != size)
+				throw new IOException("Checkpoint has " + channel.size() +
+						" bytes instead of " + size + ": " + file);
+
+			return h;
+		}
+
+	}
+
+	private static void drain(ByteBuffer buf, FileChannel channel)
+			throws IOException {
+		buf.flip();
+		while (buf.hasRemaining())
+			channel.write(buf);
+		buf.clear();
+	}
+
+}
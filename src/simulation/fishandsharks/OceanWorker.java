@@ -0,0 +1,248 @@
+/*
+ * Copyright 2013 maxstrauch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package simulation.fishandsharks;
+
+import helpers.CounterRandom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A worker process of a {@link DistributedOcean}. It keeps its strip of
+ * the ocean plus two halo rows above and below in a {@link PrimitiveOcean}
+ * and exchanges the border rows with its neighbours through the shared
+ * file.
+ */
+public class OceanWorker {
+
+	/**
+	 * The number of rows a creature can reach
+	 */
+	private static final int HALO = 2;
+
+	/**
+	 * The number of records to read or write at once
+	 */
+	private static final int CHUNK = 1 << 16;
+
+	private final DataInputStream in;
+
+	private final DataOutputStream out;
+
+	private FileChannel channel;
+
+	private PrimitiveOcean strip;
+
+	private int width, height, top, rows, fishCycle, sharkCycle;
+
+	/**
+	 * The halo rows of the neighbours and the border rows of the strip in
+	 * the shared file
+	 */
+	private MappedByteBuffer above, first, last, below;
+
+	public static void main(String[] args) throws IOException {
+		Socket s = new Socket(InetAddress.getLoopbackAddress(),
+				Integer.parseInt(args[0]));
+
+		try {
+			s.setTcpNoDelay(true);
+			new OceanWorker(s).run();
+		} finally {
+			s.close();
+		}
+	}
+
+	private OceanWorker(Socket s) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(
+				s.getOutputStream()));
+	}
+
+	private void run() throws IOException {
+		channel = FileChannel.open(Paths.get(in.readUTF()),
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		try {
+			width = in.readInt();
+			height = in.readInt();
+			top = in.readInt();
+			rows = in.readInt()-top;
+			int generation = in.readInt();
+			fishCycle = in.readInt();
+			sharkCycle = in.readInt();
+			long seed = in.readLong();
+			boolean fill = in.readBoolean();
+			int fish = in.readInt(), sharks = in.readInt();
+
+			strip = new PrimitiveOcean(width, rows+2*HALO,
+					new CounterRandom(seed), (top-HALO+height)%height, height);
+			strip.setGeneration(generation);
+
+			above = map(top-HALO);
+			first = map(top);
+			last = map(top+rows-HALO);
+			below = map(top+rows);
+
+			if (fill) {
+				strip.fill(HALO, rows+HALO, fish, sharks, null);
+				store();
+			} else {
+				load();
+			}
+
+			// The last rows are read by the neighbour below in the first
+			// phase of the next generation
+			write(last, rows);
+			sendStatistics();
+
+			for (int command = in.readInt(); command !=
+					DistributedOcean.STOP; command = in.readInt()) {
+				if (command == DistributedOcean.STEP) {
+					step();
+				} else if (command == DistributedOcean.STORE) {
+					store();
+					out.writeInt(DistributedOcean.DONE);
+					out.flush();
+				} else {
+					throw new IOException("Unknown command " + command);
+				}
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void step() throws IOException {
+		int half = rows/2;
+
+		// The upper half may change the last rows of the neighbour above,
+		// which is idle meanwhile
+		read(above, 0);
+		strip.update(HALO, HALO+half, fishCycle, sharkCycle);
+		write(above, 0);
+		write(first, HALO);
+		barrier();
+
+		// The lower half may change the first rows of the neighbour below,
+		// and the neighbour below may have changed the last rows
+		read(last, rows);
+		read(below, rows+HALO);
+		strip.update(HALO+half, rows+HALO, fishCycle, sharkCycle);
+		write(below, rows+HALO);
+		write(last, rows);
+		barrier();
+
+		// The neighbour above may have changed the first rows
+		read(first, HALO);
+		strip.setGeneration(strip.getGeneration()+1);
+		sendStatistics();
+	}
+
+	private void barrier() throws IOException {
+		out.writeInt(DistributedOcean.DONE);
+		out.flush();
+		if (in.readInt() != DistributedOcean.DONE)
+			throw new IOException("Protocol error");
+	}
+
+	private void sendStatistics() throws IOException {
+		int[][] ages = strip.getAgeDistribution(HALO, rows+HALO);
+
+		out.writeInt(ages[0].length);
+		for (int[] species : ages)
+			for (int n : species)
+				out.writeInt(n);
+		out.flush();
+	}
+
+	/**
+	 * Maps the two rows starting at the given row of the ocean
+	 */
+	private MappedByteBuffer map(int row) throws IOException {
+		row = (row+height)%height;
+		return channel.map(MapMode.READ_WRITE, position(row),
+				(long) HALO*width*OceanCheckpoint.RECORD_SIZE);
+	}
+
+	/**
+	 * Returns the position of the given row in the shared file
+	 */
+	private long position(int row) {
+		return OceanCheckpoint.HEADER_SIZE +
+				(long) row*width*OceanCheckpoint.RECORD_SIZE;
+	}
+
+	/**
+	 * Reads two rows of the shared file into the strip
+	 */
+	private void read(ByteBuffer buf, int y) {
+		buf.clear();
+		for (int i = 0; i < HALO; i++)
+			strip.read(y+i, buf);
+	}
+
+	/**
+	 * Writes two rows of the strip into the shared file
+	 */
+	private void write(ByteBuffer buf, int y) {
+		buf.clear();
+		for (int i = 0; i < HALO; i++)
+			strip.write(y+i, buf);
+	}
+
+	/**
+	 * Reads the whole strip from the shared file
+	 */
+	private void load() throws IOException {
+		int chunk = Math.max(1, CHUNK/width);
+
+		for (int y = 0; y < rows; y += chunk) {
+			int n = Math.min(chunk, rows-y);
+			ByteBuffer buf = channel.map(MapMode.READ_ONLY, position(top+y),
+					(long) n*width*OceanCheckpoint.RECORD_SIZE);
+			for (int i = 0; i < n; i++)
+				strip.read(HALO+y+i, buf);
+		}
+	}
+
+	/**
+	 * Writes the whole strip to the shared file
+	 */
+	private void store() throws IOException {
+		int chunk = Math.max(1, CHUNK/width);
+
+		for (int y = 0; y < rows; y += chunk) {
+			int n = Math.min(chunk, rows-y);
+			ByteBuffer buf = channel.map(MapMode.READ_WRITE, position(top+y),
+					(long) n*width*OceanCheckpoint.RECORD_SIZE);
+			for (int i = 0; i < n; i++)
+				strip.write(HALO+y+i, buf);
+		}
+	}
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 maxstrauch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package simulation.fishandsharks;
+
+import java.util.Arrays;
+
+import simulation.fishandsharks.Ocean.Cell;
+import simulation.fishandsharks.Ocean.Fish;
+
+/**
+ * Population counters and age histogram of an ocean which are kept up to
+ * date on every birth, move, death and ageing of a creature
+ */
+public class Population {
+
+	public static final int FISH = 0, SHARK = 1;
+
+	private int[] count;
+
+	private int[][] ages;
+
+	public Population() {
+		count = new int[2];
+		ages = new int[2][64];
+	}
+
+	public int getFishCount() {
+		return count[FISH];
+	}
+
+	public int getSharkCount() {
+		return count[SHARK];
+	}
+
+	public void add(Cell c) {
+		add(species(c), c.getAge());
+	}
+
+	public void remove(Cell c) {
+		remove(species(c), c.getAge());
+	}
+
+	/**
+	 * Counts a creature of the species {@link #FISH} or {@link #SHARK}
+	 * with the given age
+	 */
+	public void add(int species, int age) {
+		count[species]++;
+		grow(age);
+		ages[species][age]++;
+	}
+
+	public void remove(int species, int age) {
+		count[species]--;
+		grow(age);
+		ages[species][age]--;
+	}
+
+	/**
+	 * Replaces all counts by the given number of newborn creatures
+	 */
+	public void reset(int fish, int sharks) {
+		count[FISH] = fish;
+		count[SHARK] = sharks;
+		for (int s = 0; s < ages.length; s++)
+			Arrays.fill(ages[s], 0);
+		ages[FISH][0] = fish;
+		ages[SHARK][0] = sharks;
+	}
+
+	/**
+	 * Moves a creature from the age bucket <code>age-1</code> to the
+	 * bucket of its current age
+	 */
+	public void aged(Cell c) {
+		aged(species(c), c.getAge());
+	}
+
+	public void aged(int species, int age) {
+		grow(age);
+		ages[species][age-1]--;
+		ages[species][age]++;
+	}
+
+	/**
+	 * Adds the changes collected in another population to this one and
+	 * resets the other population
+	 */
+	public void merge(Population delta) {
+		for (int s = 0; s < count.length; s++) {
+			count[s] += delta.count[s];
+			delta.count[s] = 0;
+		}
+
+		grow(delta.ages[FISH].length-1);
+		for (int s = 0; s < ages.length; s++) {
+			for (int i = 0; i < delta.ages[s].length; i++)
+				ages[s][i] += delta.ages[s][i];
+			Arrays.fill(delta.ages[s], 0);
+		}
+	}
+
+	/**
+	 * Returns a copy of the age histogram: <code>[FISH][age]</code> and
+	 * <code>[SHARK][age]</code> hold the number of creatures of that age,
+	 * up to the oldest living creature
+	 */
+	public int[][] getAgeDistribution() {
+		int n = ages[FISH].length;
+		while (n > 0 && ages[FISH][n-1] == 0 && ages[SHARK][n-1] == 0)
+			n--;
+
+		return new int[][] {
+				Arrays.copyOf(ages[FISH], n), Arrays.copyOf(ages[SHARK], n)
+		};
+	}
+
+	private void grow(int age) {
+		if (age < ages[FISH].length)
+			return;
+
+		int n = Math.max(age+1, 2*ages[FISH].length);
+		for (int s = 0; s < ages.length; s++)
+			ages[s] = Arrays.copyOf(ages[s], n);
+	}
+
+	private static int species(Cell c) {
+		return c instanceof Fish ? FISH : SHARK;
+	}
+
+}
@@ -23,17 +23,21 @@ import javax.swing.JComponent;
 
 import simulation.fishandsharks.Ocean.Cell;
 
+/**
+ * Shows the whole {@link PopulationHistory} of a model. A pixel column
+ * covering any number of samples is drawn from the minimum and maximum
+ * of its samples.
+ */
 public class PopulationChart extends JComponent {
 
 	private static final long serialVersionUID = 1L;
 
-	private static final int WIDTH = 2;
-	
-	private Bar[] bars;
 	private Color[] colors;
-	
-	private int i;
-	
+
+	private PopulationHistory history;
+
+	private final int[] range = new int[2];
+
 	public PopulationChart(Color[] colors) {
 		
 		this.colors = colors;
@@ -41,62 +45,65 @@ public class PopulationChart extends JComponent {
 		setPreferredSize(new Dimension(200, 100));
 		setMinimumSize(getPreferredSize());
 		setMaximumSize(getPreferredSize());
-		
-		bars = new Bar[getPreferredSize().width/WIDTH];
-		i = 0;
 	}
-	
-	public synchronized void addData(int...values) {
-		if (values.length != colors.length)
+
+	/**
+	 * Shows the given history, e.g. of a new ocean; it is not repainted
+	 * when samples are added
+	 */
+	public void setHistory(PopulationHistory history) {
+		if (history != null && history.getSeries() != colors.length)
 			throw new IllegalArgumentException();
-		
-		bars[i] = new Bar();
-		bars[i].parts = values;
-		bars[i].total = 0;
-		for (int value : values)
-			bars[i].total += value;
-		
-		
-		i = (i+1)%bars.length;
+
+		this.history = history;
 		repaint();
 	}
 
+	public PopulationHistory getHistory() {
+		return history;
+	}
+
 	@Override
 	protected void paintComponent(Graphics g) {
-		int h = getHeight();
+		int w = getWidth(), h = getHeight();
 
 		g.setColor(Cell.OCEAN_LIGHT);
-	 	g.fillRect(0, 0, getWidth(), h);
-		
-		for (int i = 0; i < bars.length; i++) {
-			if (bars[i] == null)
-				continue;
-		
-			int x0 = 0, h0;
-			for (int j = 0; j < bars[i].parts.length; j++) {
-				h0 = (int) Math.round(bars[i].relative(j)*h);
-				g.setColor(colors[j]);
-				g.fillRect(i*WIDTH, x0, WIDTH, h0);
-				x0 += h0;
+	 	g.fillRect(0, 0, w, h);
+
+		if (history != null) {
+			synchronized (history) {
+				paintHistory(g, w, h);
 			}
 		}
 
-		// Draw scanner line and border
+		// Draw border
 		g.setColor(Color.black);
-		g.drawLine(i*WIDTH, 0, i*WIDTH, h);
-		g.drawRect(0, 0, getWidth()-1, getHeight()-1);
+		g.drawRect(0, 0, w-1, h-1);
 	}
-	
-	
-	private class Bar {
-		
-		int total;
-		int[] parts;
-		
-		private float relative(int i) {
-			return ((float) parts[i])/((float) total);
+
+	private void paintHistory(Graphics g, int w, int h) {
+		long count = history.getCount(), first = Math.max(0, 
+				count-history.getMaxSamples()), n = count-first;
+		int total = history.getTotal();
+		if (n == 0 || total == 0)
+			return;
+
+		// Every pixel column shows the range of its samples
+		for (int x = 0; x < w; x++) {
+			long from = first+n*x/w;
+			long to = Math.max(from+1, first+n*(x+1)/w);
+
+			for (int s = 0; s < colors.length; s++) {
+				history.range(s, from, to, range);
+				g.setColor(colors[s]);
+				g.drawLine(x, y(range[1], total, h), x, 
+						y(range[0], total, h));
+			}
 		}
-		
+	}
+
+	private static int y(int value, int total, int h) {
+		return (int) ((long) (total-value)*(h-1)/total);
 	}
 	
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013 maxstrauch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package simulation.fishandsharks;
+
+/**
+ * The whole history of the population counts. The counts are kept in a
+ * ring buffer per series together with a pyramid of the minima and
+ * maxima of aligned blocks of <code>2^k</code> samples, so the range of
+ * any number of samples is found from a few blocks only. The counts are
+ * added by the thread which steps the model and read while painting.
+ */
+public class PopulationHistory {
+
+	/**
+	 * The number of samples kept by default, a power of two; older 
+	 * samples are overwritten
+	 */
+	public static final int MAX_SAMPLES = 1 << 22;
+
+	/**
+	 * The binary logarithm of the size of the smallest blocks
+	 */
+	private static final int BLOCK = 4;
+
+	private static final int INITIAL_CAPACITY = 1 << 10;
+
+	private final int series, maxSamples, levels;
+
+	/**
+	 * The samples of every series at <code>count % maxSamples</code>
+	 */
+	private int[][] samples;
+
+	/**
+	 * The minima and maxima per level, series and block
+	 */
+	private int[][][] min, max;
+
+	private int capacity, total;
+
+	private long count;
+
+	public PopulationHistory(int series) {
+		this(series, MAX_SAMPLES);
+	}
+
+	/**
+	 * Creates a history which keeps the given number of samples, a power
+	 * of two of at least <code>2^BLOCK</code>
+	 */
+	PopulationHistory(int series, int maxSamples) {
+		if (Integer.bitCount(maxSamples) != 1 || maxSamples < 1 << BLOCK)
+			throw new IllegalArgumentException();
+
+		this.series = series;
+		this.maxSamples = maxSamples;
+		levels = Integer.numberOfTrailingZeros(maxSamples)-BLOCK+1;
+
+		capacity = Math.min(INITIAL_CAPACITY, maxSamples);
+		samples = new int[series][capacity];
+		min = new int[levels][series][];
+		max = new int[levels][series][];
+		for (int l = 0; l < levels; l++) {
+			for (int s = 0; s < series; s++) {
+				min[l][s] = new int[blocks(l, capacity)];
+				max[l][s] = new int[blocks(l, capacity)];
+			}
+		}
+	}
+
+	public int getSeries() {
+		return series;
+	}
+
+	/**
+	 * Returns the number of samples kept, see {@link #MAX_SAMPLES}
+	 */
+	public int getMaxSamples() {
+		return maxSamples;
+	}
+
+	/**
+	 * Returns the number of samples added so far, including those which
+	 * were overwritten
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the sum of all series of the last sample
+	 */
+	public synchronized int getTotal() {
+		return total;
+	}
+
+	public synchronized void add(int...values) {
+		if (values.length != series)
+			throw new IllegalArgumentException();
+
+		int p = (int) (count & (maxSamples-1));
+		if (p == capacity)
+			grow();
+
+		total = 0;
+		for (int s = 0; s < values.length; s++) {
+			int v = values[s];
+			samples[s][p] = v;
+			total += v;
+
+			// The first sample of a block replaces the overwritten ones
+			for (int l = 0; l < levels; l++) {
+				int shift = BLOCK+l, b = p >> shift;
+				if ((p & ((1 << shift)-1)) == 0) {
+					min[l][s][b] = max[l][s][b] = v;
+				} else {
+					min[l][s][b] = Math.min(min[l][s][b], v);
+					max[l][s][b] = Math.max(max[l][s][b], v);
+				}
+			}
+		}
+
+		count++;
+	}
+
+	/**
+	 * Doubles the capacity; this happens only before the ring wraps, so
+	 * the positions of the samples stay the same
+	 */
+	private void grow() {
+		capacity *= 2;
+		for (int s = 0; s < series; s++) {
+			samples[s] = copyOf(samples[s], capacity);
+			for (int l = 0; l < levels; l++) {
+				min[l][s] = copyOf(min[l][s], blocks(l, capacity));
+				max[l][s] = copyOf(max[l][s], blocks(l, capacity));
+			}
+		}
+	}
+
+	private static int[] copyOf(int[] a, int length) {
+		int[] copy = new int[length];
+		System.arraycopy(a, 0, copy, 0, Math.min(a.length, length));
+		return copy;
+	}
+
+	/**
+	 * Returns the number of blocks of a level; blocks larger than the
+	 * capacity are kept as a single partial block
+	 */
+	private static int blocks(int level, int capacity) {
+		return Math.max(1, capacity >> (BLOCK+level));
+	}
+
+	/**
+	 * Finds the minimum and maximum of a series over the samples
+	 * <code>[from, to)</code>, counted since the history was created, and
+	 * stores them in <code>range[0]</code> and <code>range[1]</code>; 
+	 * only the last <code>maxSamples</code> samples are kept. The range is
+	 * covered by the largest aligned blocks which fit into
+	 * it and the single samples at its ends.
+	 */
+	public synchronized void range(int series, long from, long to, 
+			int[] range) {
+		int lo = Integer.MAX_VALUE, hi = Integer.MIN_VALUE;
+
+		for (long i = from; i < to;) {
+			int p = (int) (i & (maxSamples-1));
+			int shift = Math.min(Long.numberOfTrailingZeros(i),
+					BLOCK+levels-1);
+			while (shift >= BLOCK && i+(1L << shift) > to)
+				shift--;
+
+			if (shift >= BLOCK) {
+				int l = shift-BLOCK, b = p >> shift;
+				lo = Math.min(lo, min[l][series][b]);
+				hi = Math.max(hi, max[l][series][b]);
+				i += 1L << shift;
+			} else {
+				lo = Math.min(lo, samples[series][p]);
+				hi = Math.max(hi, samples[series][p]);
+				i++;
+			}
+		}
+
+		range[0] = lo;
+		range[1] = hi;
+	}
+
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright 2013 maxstrauch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package simulation.fishandsharks;
+
+import helpers.CounterRandom;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * An ocean which keeps all creatures in flat primitive arrays indexed by
+ * <code>y*width+x</code> instead of a grid of {@link Ocean.Cell} objects.
+ * The fish and shark rules are the same as in {@link Ocean.Fish} and
+ * {@link Ocean.Shark}, but a step does not allocate anything.
+ */
+public class PrimitiveOcean {
+
+	public static final byte EMPTY = 0, FISH = 1, SHARK = 2;
+
+	private static final byte SHARK_LIFE = 2;
+
+	/**
+	 * The number of consecutive cells filled at once
+	 */
+	private static final int TILE = 512;
+
+	private final int width, height;
+
+	private final byte[] species, lifeIndex, time;
+
+	private final int[] age;
+
+	/**
+	 * The offsets to the east and west neighbours per column, which wrap
+	 * around at the borders
+	 */
+	private final int[] east, west;
+
+	private final CounterRandom random;
+
+	/**
+	 * The index of the first cell in a larger ocean and the size of that
+	 * ocean, so that the random decisions of a strip of it are the same
+	 * as in the whole ocean
+	 */
+	private final int origin, size;
+
+	private int generation;
+
+	/**
+	 * The counts and ages of all creatures, including those of the halo
+	 * rows of a strip
+	 */
+	private final Population population = new Population();
+
+	public PrimitiveOcean(int width, int height) {
+		this(width, height, new CounterRandom());
+	}
+
+	public PrimitiveOcean(int width, int height, CounterRandom random) {
+		this(width, height, random, 0, height);
+	}
+
+	/**
+	 * Creates a strip of <code>height</code> rows of an ocean with 
+	 * <code>totalHeight</code> rows which starts at the row 
+	 * <code>firstRow</code> of that ocean
+	 */
+	PrimitiveOcean(int width, int height, CounterRandom random, int firstRow,
+			int totalHeight) {
+		if (width < 1 || height < 1 || firstRow < 0 ||
+				firstRow >= totalHeight)
+			throw new IllegalArgumentException();
+
+		this.width = width;
+		this.height = height;
+		this.random = random;
+		this.origin = firstRow*width;
+		this.size = totalHeight*width;
+
+		species = new byte[width*height];
+		lifeIndex = new byte[width*height];
+		time = new byte[width*height];
+		age = new int[width*height];
+
+		east = new int[width];
+		west = new int[width];
+		for (int x = 0; x < width; x++) {
+			east[x] = x == width-1 ? 1-width : 1;
+			west[x] = x == 0 ? width-1 : -1;
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	void setGeneration(int generation) {
+		this.generation = generation;
+	}
+
+	public int getFishCount() {
+		return population.getFishCount();
+	}
+
+	public int getSharkCount() {
+		return population.getSharkCount();
+	}
+
+	public int getEmptyCount() {
+		return width*height-getFishCount()-getSharkCount();
+	}
+
+	/**
+	 * Returns the creatures per age in the same layout as
+	 * {@link Population#getAgeDistribution()}
+	 */
+	public int[][] getAgeDistribution() {
+		return population.getAgeDistribution();
+	}
+
+	/**
+	 * Returns the creatures per age in the rows <code>[from, to)</code>;
+	 * it is computed from all creatures by subtracting those of the other
+	 * rows
+	 */
+	int[][] getAgeDistribution(int from, int to) {
+		int[][] ages = population.getAgeDistribution();
+
+		for (int i = 0; i < species.length; i++) {
+			if (i == from*width)
+				i = to*width;
+			if (i < species.length && species[i] != EMPTY)
+				ages[kind(i)][age[i]]--;
+		}
+
+		return ages;
+	}
+
+	public byte getSpecies(int x, int y) {
+		return species[index(x, y)];
+	}
+
+	public int getAge(int x, int y) {
+		return age[index(x, y)];
+	}
+
+	public int getLifeIndex(int x, int y) {
+		return lifeIndex[index(x, y)];
+	}
+
+	public void place(int x, int y, byte type) {
+		int i = index(x, y);
+		clear(i);
+		if (type != EMPTY)
+			spawn(i, type, generation);
+	}
+
+	/**
+	 * Replaces all creatures by the given densities of fish and sharks
+	 * on random cells; the tiles are filled in parallel if a pool is given
+	 */
+	public void fillRandomly(double fishes, double sharks, 
+			ForkJoinPool pool) {
+		long n = (long) width*height;
+		int fish = (int) Math.max(0, Math.min(n, Math.round(n*fishes)));
+		int shark = (int) Math.max(0, Math.min(n-fish, Math.round(n*sharks)));
+
+		fill(0, height, fish, shark, pool);
+	}
+
+	/**
+	 * Fills the rows <code>[from, to)</code> as they are filled in the
+	 * whole ocean with exactly the given number of fish and sharks, so 
+	 * that the strips of an ocean together hold exactly these numbers
+	 */
+	void fill(int from, int to, int fish, int sharks, ForkJoinPool pool) {
+		final int first = from*width, end = to*width;
+		boolean whole = origin == 0 && first == 0 && end == size;
+
+		if (!whole)
+			for (int i = first; i < end; i++)
+				clear(i);
+
+		long[] offsets = new long[(size+TILE-1)/TILE+1];
+		for (int t = 1; t < offsets.length; t++)
+			offsets[t] = Math.min(size, (long) t*TILE);
+
+		// The rows may wrap around the end of the whole ocean
+		final long lo = ((long) origin+first)%size, hi = lo+end-first;
+
+		CounterRandom seed = new CounterRandom(random.nextLong(
+				CounterRandom.key(generation, -1), 0));
+		RandomFill.Tiles tiles = new RandomFill.Tiles() {
+
+			@Override
+			public void fill(int tile, int[] cells, int fish, int sharks) {
+				for (int j = 0; j < cells.length; j++) {
+					long i = (long) tile*TILE+cells[j]-lo;
+					if (i < 0)
+						i += size;
+					if (i >= end-first)
+						continue;
+
+					set(first+(int) i, j < fish ? FISH : 
+						j < fish+sharks ? SHARK : EMPTY);
+				}
+			}
+
+		};
+
+		new RandomFill(seed, tiles, offsets, fish, sharks, lo, hi).run(pool);
+		if (hi > size)
+			new RandomFill(seed, tiles, offsets, fish, sharks, lo-size,
+					hi-size).run(pool);
+
+		if (whole)
+			population.reset(fish, sharks);
+		else
+			for (int i = first; i < end; i++)
+				if (species[i] != EMPTY)
+					population.add(kind(i), 0);
+	}
+
+	public void step(int fishCycle, int sharkCycle) {
+		update(0, height, fishCycle, sharkCycle);
+		generation++;
+	}
+
+	/**
+	 * Updates the creatures of the rows <code>[from, to)</code> without
+	 * finishing the generation; a creature reaches up to two rows above
+	 * and below its own row
+	 */
+	void update(int from, int to, int fishCycle, int sharkCycle) {
+		byte pending = (byte) generation;
+
+		for (int y = from, i = from*width; y < to; y++) {
+			for (int x = 0; x < width; x++, i++) {
+				if (species[i] == EMPTY || time[i] != pending)
+					continue;
+
+				if (species[i] == FISH)
+					updateFish(i, x, fishCycle);
+				else
+					updateShark(i, x, sharkCycle);
+			}
+		}
+	}
+
+	/**
+	 * Reads the row <code>y</code> from checkpoint records, see 
+	 * {@link OceanCheckpoint}
+	 */
+	void read(int y, ByteBuffer buf) {
+		for (int i = y*width; i < (y+1)*width; i++) {
+			byte type = buf.get(), life = buf.get();
+			int stamp = buf.getInt(), age = buf.getInt();
+
+			if (type != EMPTY && type != FISH && type != SHARK)
+				throw new IllegalArgumentException("Invalid cell " + i);
+
+			clear(i);
+			if (type != EMPTY) {
+				set(i, type, stamp, age);
+				lifeIndex[i] = life;
+			}
+		}
+	}
+
+	/**
+	 * Writes the row <code>y</code> as checkpoint records
+	 */
+	void write(int y, ByteBuffer buf) {
+		for (int i = y*width; i < (y+1)*width; i++) {
+			if (species[i] == EMPTY) {
+				buf.put(EMPTY).put((byte) 0).putInt(0).putInt(0);
+			} else {
+				buf.put(species[i]).put(lifeIndex[i]);
+				// Only the low byte of the stamp is kept, which is enough
+				// to tell the current from the next generation
+				buf.putInt(generation+(byte) (time[i]-generation));
+				buf.putInt(age[i]);
+			}
+		}
+	}
+
+	/**
+	 * Updates the fish at cell <code>i</code> in column <code>x</code>
+	 */
+	private void updateFish(int i, int x, int fishCycle) {
+		long key = CounterRandom.key(generation, cell(i));
+		int free;
+
+		// Rule 1:
+		// A fish moves randomly to a neighbor field if it's free and
+		// he has regenerated from the last time
+		free = getNeighbourMask(i, x, EMPTY);
+		if (free != 0 && generation%fishCycle == 0) {
+			int d = pick(free, key, 0);
+			i = move(i, neighbour(i, x, d));
+			x = column(x, d);
+		}
+
+		// Rule 2:
+		// On a neighbor field which is empty a new fish is born
+		free = getNeighbourMask(i, x, EMPTY);
+		if (free != 0)
+			spawn(neighbour(i, x, pick(free, key, 1)), FISH, generation+1);
+
+		time[i]++;
+		population.aged(Population.FISH, ++age[i]);
+	}
+
+	private void updateShark(int i, int x, int sharkCycle) {
+		long key = CounterRandom.key(generation, cell(i));
+		int fish, free;
+
+		// Rule 1:
+		// A shark eats all fishes in neighborhood
+		fish = getNeighbourMask(i, x, FISH);
+		for (int d = 0; d < 4; d++)
+			if ((fish & (1 << d)) != 0)
+				clear(neighbour(i, x, d));
+
+		// Rule 2:
+		// If the shark eats nothing he moves to a free cell
+		free = getNeighbourMask(i, x, EMPTY);
+		if (fish == 0 && free != 0) {
+			int d = pick(free, key, 0);
+			i = move(i, neighbour(i, x, d));
+			x = column(x, d);
+		}
+
+		// Rule 3:
+		// On a neighbor field which is empty a new shark is born after
+		// regeneration
+		free = getNeighbourMask(i, x, EMPTY);
+		if (free != 0 && generation%sharkCycle == 0)
+			spawn(neighbour(i, x, pick(free, key, 1)), SHARK, generation+1);
+
+		// Rule 4:
+		// A shark dies if he has nothing to eat two times
+		if (fish == 0)
+			lifeIndex[i]--;
+		if (lifeIndex[i] < 1) {
+			clear(i);
+			return;
+		}
+
+		time[i]++;
+		population.aged(Population.SHARK, ++age[i]);
+	}
+
+	/**
+	 * Returns a 4-bit mask of the neighbours of cell <code>i</code> which
+	 * hold the given species; bit <code>d</code> refers to the direction
+	 * {@link Ocean#NEIGHBOUR_MASK}<code>[d]</code>
+	 */
+	private int getNeighbourMask(int i, int x, byte type) {
+		int mask = 0;
+		for (int d = 0; d < 4; d++)
+			if (species[neighbour(i, x, d)] == type)
+				mask |= 1 << d;
+		return mask;
+	}
+
+	/**
+	 * Returns the neighbour in direction <code>d</code> of cell
+	 * <code>i</code> in column <code>x</code>
+	 */
+	private int neighbour(int i, int x, int d) {
+		switch (d) {
+		case 0:
+			return i < width ? i+(height-1)*width : i-width;
+		case 1:
+			return i+east[x];
+		case 2:
+			return i >= (height-1)*width ? i-(height-1)*width : i+width;
+		default:
+			return i+west[x];
+		}
+	}
+
+	/**
+	 * Returns the column of the neighbour in direction <code>d</code> of
+	 * a cell in column <code>x</code>
+	 */
+	private int column(int x, int d) {
+		return d == 1 ? x+east[x] : d == 3 ? x+west[x] : x;
+	}
+
+	/**
+	 * Returns the index of cell <code>i</code> in the whole ocean
+	 */
+	private int cell(int i) {
+		int c = origin+i;
+		while (c >= size)
+			c -= size;
+		return c;
+	}
+
+	private int pick(int mask, long key, int draw) {
+		int n = random.nextInt(key, draw, Integer.bitCount(mask));
+		while (n-- > 0)
+			mask &= mask-1;
+		return Integer.numberOfTrailingZeros(mask);
+	}
+
+	private int move(int from, int to) {
+		species[to] = species[from];
+		lifeIndex[to] = lifeIndex[from];
+		time[to] = time[from];
+		age[to] = age[from];
+		species[from] = EMPTY;
+		return to;
+	}
+
+	private void spawn(int i, byte type, int generation) {
+		set(i, type, generation, 0);
+	}
+
+	private void set(int i, byte type, int generation, int age) {
+		species[i] = type;
+		lifeIndex[i] = SHARK_LIFE;
+		time[i] = (byte) generation;
+		this.age[i] = age;
+		population.add(kind(i), age);
+	}
+
+	/**
+	 * Places a creature without counting it, so that tiles can be filled
+	 * in parallel
+	 */
+	private void set(int i, byte type) {
+		species[i] = type;
+		lifeIndex[i] = SHARK_LIFE;
+		time[i] = (byte) generation;
+		age[i] = 0;
+	}
+
+	private void clear(int i) {
+		if (species[i] != EMPTY)
+			population.remove(kind(i), age[i]);
+		species[i] = EMPTY;
+	}
+
+	/**
+	 * Returns the species of the creature at <code>i</code> as 
+	 * {@link Population#FISH} or {@link Population#SHARK}
+	 */
+	private int kind(int i) {
+		return species[i] == FISH ? Population.FISH : Population.SHARK;
+	}
+
+	private int index(int x, int y) {
+		return ((height+(y%height))%height)*width + (width+(x%width))%width;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder(species.length+height);
+
+		for (int i = 0; i < species.length; i++) {
+			if (species[i] == FISH)
+				buf.append('f');
+			else if (species[i] == SHARK)
+				buf.append(lifeIndex[i] == 2 ? 'S' : 's');
+			else
+				buf.append('.');
+
+			if (i%width == width-1)
+				buf.append('\n');
+		}
+
+		return buf.toString();
+	}
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2013 maxstrauch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package simulation.fishandsharks;
+
+import helpers.CounterRandom;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Places exactly a given number of fish and sharks on random cells of an
+ * ocean which is divided into tiles. The counts are split recursively
+ * between the two halves of a range of tiles by drawing how many of them
+ * fall into each half, and the cells of a single tile are chosen by a
+ * partial Fisher-Yates shuffle. Every split and every tile draws from its
+ * own key, so the tiles can be filled in parallel and the result only
+ * depends on the seed.
+ * <p>
+ * The totals are always exact, but the placement is only approximately
+ * uniform: splits of more than {@link #EXACT} creatures are drawn from a
+ * normal approximation, so the counts per tile deviate slightly from
+ * those of a uniform choice of cells.
+ */
+class RandomFill extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Up to this number of creatures a split is drawn exactly, above it
+	 * from the normal approximation of the hypergeometric distribution
+	 */
+	private static final int EXACT = 32;
+
+	/**
+	 * Fills a single tile
+	 */
+	interface Tiles {
+
+		/**
+		 * Replaces the creatures of a tile: the cells
+		 * <code>cells[0, fish)</code> get a fish, the cells
+		 * <code>cells[fish, fish+sharks)</code> a shark and all others
+		 * are emptied
+		 */
+		void fill(int tile, int[] cells, int fish, int sharks);
+
+	}
+
+	private final CounterRandom random;
+
+	private final Tiles tiles;
+
+	/**
+	 * The number of cells before every tile and in total
+	 */
+	private final long[] offsets;
+
+	private final int from, to, fish, sharks;
+
+	/**
+	 * Only the tiles which overlap the cells <code>[lo, hi)</code> are
+	 * filled
+	 */
+	private final long lo, hi;
+
+	/**
+	 * Creates the fill of all tiles
+	 */
+	RandomFill(CounterRandom random, Tiles tiles, long[] offsets, int fish,
+			int sharks) {
+		this(random, tiles, offsets, fish, sharks, 0, 
+				offsets[offsets.length-1]);
+	}
+
+	/**
+	 * Creates the fill of the tiles which overlap the cells 
+	 * <code>[lo, hi)</code>; they get the same creatures as in the fill 
+	 * of all tiles
+	 */
+	RandomFill(CounterRandom random, Tiles tiles, long[] offsets, int fish,
+			int sharks, long lo, long hi) {
+		this(random, tiles, offsets, 0, offsets.length-1, fish, sharks, lo, 
+				hi);
+		long n = offsets[offsets.length-1];
+		if (fish < 0 || sharks < 0 || fish+sharks > n)
+			throw new IllegalArgumentException();
+	}
+
+	private RandomFill(CounterRandom random, Tiles tiles, long[] offsets,
+			int from, int to, int fish, int sharks, long lo, long hi) {
+		this.random = random;
+		this.tiles = tiles;
+		this.offsets = offsets;
+		this.from = from;
+		this.to = to;
+		this.fish = fish;
+		this.sharks = sharks;
+		this.lo = lo;
+		this.hi = hi;
+	}
+
+	/**
+	 * Fills the tiles on the given pool or on the calling thread if there
+	 * is none
+	 */
+	void run(ForkJoinPool pool) {
+		if (pool == null)
+			compute();
+		else
+			pool.invoke(this);
+	}
+
+	@Override
+	protected void compute() {
+		if (offsets[to] <= lo || offsets[from] >= hi)
+			return;
+
+		long key = CounterRandom.key(from, to);
+
+		if (to-from == 1) {
+			int n = (int) (offsets[to]-offsets[from]), k = fish+sharks;
+			int[] cells = new int[n];
+			for (int i = 0; i < n; i++)
+				cells[i] = i;
+			for (int i = 0; i < k; i++) {
+				int j = i+random.nextInt(key, i, n-i), c = cells[i];
+				cells[i] = cells[j];
+				cells[j] = c;
+			}
+
+			tiles.fill(from, cells, fish, sharks);
+			return;
+		}
+
+		// Split the creatures and then the fish among them
+		int mid = (from+to) >>> 1;
+		int k = draw(key, 0, offsets[to]-offsets[from], fish+sharks,
+				offsets[mid]-offsets[from]);
+		int f = draw(key, EXACT, fish+sharks, fish, k);
+
+		RandomFill left = new RandomFill(random, tiles, offsets, from, mid,
+				f, k-f, lo, hi);
+		RandomFill right = new RandomFill(random, tiles, offsets, mid, to,
+				fish-f, sharks-k+f, lo, hi);
+		if (inForkJoinPool()) {
+			invokeAll(left, right);
+		} else {
+			left.compute();
+			right.compute();
+		}
+	}
+
+	/**
+	 * Draws how many of <code>k</code> items placed on <code>n</code>
+	 * places fall on the first <code>n1</code> of them
+	 */
+	private int draw(long key, int draw, long n, int k, long n1) {
+		// Drawing the free places is cheaper if most are taken
+		if (k > n/2)
+			return (int) (n1-draw(key, draw, n, (int) (n-k), n1));
+
+		int lo = (int) Math.max(0, k-(n-n1)), hi = (int) Math.min(k, n1);
+		if (k <= EXACT) {
+			int x = 0;
+			for (int i = 0; i < k; i++)
+				if (random.nextDouble(key, draw+i)*(n-i) < n1-x)
+					x++;
+			return x;
+		}
+
+		double p = (double) n1/n;
+		double mean = k*p, var = k*p*(1-p)*(n-k)/(n-1);
+		double gauss = Math.sqrt(-2*Math.log(1-random.nextDouble(key, draw)))*
+				Math.cos(2*Math.PI*random.nextDouble(key, draw+1));
+		long x = Math.round(mean+Math.sqrt(var)*gauss);
+		return (int) Math.max(lo, Math.min(hi, x));
+	}
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2013 maxstrauch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package simulation.fishandsharks;
+
+import helpers.CounterRandom;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs a Wa-Tor simulation without a GUI as fast as possible and streams
+ * the population counts and age distribution of every generation to a
+ * CSV or binary file
+ */
+public class SharkFishBatch {
+
+	/**
+	 * Magic number at the beginning of the binary output
+	 */
+	public static final int MAGIC = 0x57415453;
+
+	private int width = 120, height = 120, generations = 1000,
+			fishCycle = 2, sharkCycle = 3, workers;
+
+	private double fishes = .1, sharks = .05;
+
+	private boolean parallel, primitive, binary, cycles;
+
+	private Long seed;
+
+	private String output, restore, save;
+
+	private DataOutputStream bin;
+
+	private PrintStream csv;
+
+	public static void main(String[] args) throws IOException {
+		System.setProperty("java.awt.headless", "true");
+
+		SharkFishBatch batch = new SharkFishBatch();
+		if (!batch.parse(args)) {
+			usage();
+			System.exit(1);
+		}
+
+		batch.run();
+	}
+
+	private static void usage() {
+		System.err.println("Usage: batch [options] <output.csv|output.bin>\n" +
+				"  -size <width> <height>  size of the ocean (120 120)\n" +
+				"  -generations <n>        generations to run (1000)\n" +
+				"  -fill <fish> <sharks>   initial densities (.1 .05)\n" +
+				"  -cycles <fish> <shark>  recycle generations (2 3)\n" +
+				"  -seed <n>               seed of all random decisions\n" +
+				"  -parallel               use the parallel step\n" +
+				"  -primitive              use the primitive ocean\n" +
+				"  -workers <n>            split the ocean among n processes\n" +
+				"  -restore <file>         start from a checkpoint\n" +
+				"  -save <file>            write a checkpoint at the end");
+	}
+
+	private boolean parse(String[] args) {
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if ("-size".equals(args[i])) {
+					width = Integer.parseInt(args[++i]);
+					height = Integer.parseInt(args[++i]);
+				} else if ("-generations".equals(args[i])) {
+					generations = Integer.parseInt(args[++i]);
+				} else if ("-fill".equals(args[i])) {
+					fishes = Double.parseDouble(args[++i]);
+					sharks = Double.parseDouble(args[++i]);
+				} else if ("-cycles".equals(args[i])) {
+					fishCycle = Integer.parseInt(args[++i]);
+					sharkCycle = Integer.parseInt(args[++i]);
+					cycles = true;
+				} else if ("-restore".equals(args[i])) {
+					restore = args[++i];
+				} else if ("-save".equals(args[i])) {
+					save = args[++i];
+				} else if ("-seed".equals(args[i])) {
+					seed = Long.parseLong(args[++i]);
+				} else if ("-parallel".equals(args[i])) {
+					parallel = true;
+				} else if ("-primitive".equals(args[i])) {
+					primitive = true;
+				} else if ("-workers".equals(args[i])) {
+					workers = Integer.parseInt(args[++i]);
+				} else if (output == null && !args[i].startsWith("-")) {
+					output = args[i];
+				} else {
+					return false;
+				}
+			}
+		} catch (RuntimeException e) {
+			return false;
+		}
+
+		binary = output != null && output.endsWith(".bin");
+		return output != null && width > 0 && height > 0 &&
+				!(primitive && (restore != null || save != null)) &&
+				!(workers != 0 && (primitive || parallel || workers < 0)) &&
+				fishCycle > 0 && sharkCycle > 0;
+	}
+
+	public void run() throws IOException {
+		OutputStream out = new BufferedOutputStream(
+				new FileOutputStream(output), 1 << 16);
+		long start = System.nanoTime();
+
+		try {
+			if (workers > 0) {
+				runDistributed(out);
+			} else if (primitive) {
+				PrimitiveOcean ocean = new PrimitiveOcean(width, height,
+						seed == null ? new CounterRandom() :
+							new CounterRandom(seed));
+				ForkJoinPool pool = parallel ? new ForkJoinPool() : null;
+				try {
+					ocean.fillRandomly(fishes, sharks, pool);
+				} finally {
+					if (pool != null)
+						pool.shutdown();
+				}
+				open(out);
+				write(0, ocean.getFishCount(), ocean.getSharkCount(),
+						ocean.getEmptyCount(), ocean.getAgeDistribution());
+
+				for (int g = 1; g <= generations; g++) {
+					ocean.step(fishCycle, sharkCycle);
+					write(g, ocean.getFishCount(), ocean.getSharkCount(),
+							ocean.getEmptyCount(), ocean.getAgeDistribution());
+				}
+			} else {
+				SharkFishModel model;
+
+				if (restore != null) {
+					model = OceanCheckpoint.read(Paths.get(restore));
+					width = model.getOcean().getWidth();
+					height = model.getOcean().getHeight();
+					if (cycles)
+						model.notifyRecycleChanged(fishCycle, sharkCycle);
+					if (seed != null)
+						model.setSeed(seed);
+				} else {
+					model = new SharkFishModel(width, height);
+					if (seed != null)
+						model.setSeed(seed);
+					model.notifyRecycleChanged(fishCycle, sharkCycle);
+					model.fillOceanRandomly(fishes, sharks);
+				}
+
+				model.setParallel(parallel);
+				open(out);
+				write(model.getGeneration(), model.getFishCount(),
+						model.getSharkCount(), model.getEmptyCount(),
+						model.getAgeDistribution());
+
+				for (int g = 1; g <= generations; g++) {
+					model.step();
+					write(model.getGeneration(), model.getFishCount(),
+							model.getSharkCount(), model.getEmptyCount(),
+							model.getAgeDistribution());
+				}
+				model.setParallel(false);
+
+				if (save != null)
+					OceanCheckpoint.write(model, Paths.get(save));
+			}
+		} finally {
+			out.close();
+		}
+
+		start = System.nanoTime()-start;
+		System.err.println(generations + " generations in " +
+				(start*1e-9) + " s");
+	}
+
+	private void runDistributed(OutputStream out) throws IOException {
+		DistributedOcean ocean;
+
+		if (restore != null) {
+			ocean = DistributedOcean.restore(Paths.get(restore), workers);
+			width = ocean.getWidth();
+			height = ocean.getHeight();
+		} else {
+			ocean = new DistributedOcean(width, height, workers);
+		}
+		if (cycles || restore == null)
+			ocean.notifyRecycleChanged(fishCycle, sharkCycle);
+		if (seed != null)
+			ocean.setSeed(seed);
+
+		try {
+			ocean.start(fishes, sharks);
+			open(out);
+			write(ocean.getGeneration(), ocean.getFishCount(),
+					ocean.getSharkCount(), ocean.getEmptyCount(),
+					ocean.getAgeDistribution());
+
+			for (int g = 1; g <= generations; g++) {
+				ocean.step();
+				write(ocean.getGeneration(), ocean.getFishCount(),
+						ocean.getSharkCount(), ocean.getEmptyCount(),
+						ocean.getAgeDistribution());
+			}
+
+			if (save != null)
+				ocean.save(Paths.get(save));
+		} finally {
+			ocean.close();
+		}
+	}
+
+	private void open(OutputStream out) throws IOException {
+		if (binary) {
+			bin = new DataOutputStream(out);
+			bin.writeInt(MAGIC);
+			bin.writeInt(width);
+			bin.writeInt(height);
+		} else {
+			csv = new PrintStream(out, false, "US-ASCII");
+			csv.println("generation,fish,sharks,empty,fish ages,shark ages");
+		}
+	}
+
+	/**
+	 * Writes one generation; in binary files a record consists of the
+	 * generation, the three counts, the length <code>n</code> of the age
+	 * distribution and <code>n</code> fish and <code>n</code> shark counts
+	 */
+	private void write(int generation, int fish, int sharks, int empty,
+			int[][] ages) throws IOException {
+		if (binary) {
+			bin.writeInt(generation);
+			bin.writeInt(fish);
+			bin.writeInt(sharks);
+			bin.writeInt(empty);
+			bin.writeInt(ages[Population.FISH].length);
+			for (int[] species : ages)
+				for (int n : species)
+					bin.writeInt(n);
+		} else {
+			csv.print(generation);
+			csv.print(',');
+			csv.print(fish);
+			csv.print(',');
+			csv.print(sharks);
+			csv.print(',');
+			csv.print(empty);
+			for (int[] species : ages) {
+				csv.print(',');
+				for (int i = 0; i < species.length; i++) {
+					if (i > 0)
+						csv.print(' ');
+					csv.print(species[i]);
+				}
+			}
+			csv.println();
+
+			if (csv.checkError())
+				throw new IOException("Failed to write " + output);
+		}
+	}
+
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2013 maxstrauch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package simulation.fishandsharks;
+
+import helpers.CounterRandom;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Runs many independent replicas of a Wa-Tor simulation for every point
+ * of a grid of recycle cycles on a fork-join pool. The fish and shark
+ * counts of the replicas are reduced to a mean and a confidence interval
+ * per generation while the replicas finish, so the memory needed does not
+ * grow with the number of replicas.
+ */
+public class SharkFishEnsemble {
+
+	/**
+	 * The quantile of the normal distribution for 95% confidence intervals
+	 */
+	private static final double Z95 = 1.959964;
+
+	private final int width, height, generations, replicas;
+
+	private double fishes = .1, sharks = .05;
+
+	private long seed = new CounterRandom().getSeed();
+
+	private List<int[]> points = new ArrayList<int[]>();
+
+	public SharkFishEnsemble(int width, int height, int generations,
+			int replicas) {
+		if (width < 1 || height < 1 || generations < 0 || replicas < 1)
+			throw new IllegalArgumentException();
+
+		this.width = width;
+		this.height = height;
+		this.generations = generations;
+		this.replicas = replicas;
+	}
+
+	/**
+	 * Adds a point of the parameter grid
+	 */
+	public void addPoint(int fishCycle, int sharkCycle) {
+		if (fishCycle < 1 || sharkCycle < 1)
+			throw new IllegalArgumentException();
+
+		points.add(new int[] {fishCycle, sharkCycle});
+	}
+
+	/**
+	 * Adds all combinations of the given cycles to the parameter grid
+	 */
+	public void addGrid(int[] fishCycles, int[] sharkCycles) {
+		for (int f : fishCycles)
+			for (int s : sharkCycles)
+				addPoint(f, s);
+	}
+
+	public void setFill(double fishes, double sharks) {
+		this.fishes = fishes;
+		this.sharks = sharks;
+	}
+
+	/**
+	 * Seeds the ensemble; every replica gets its own seed derived from
+	 * this one, its point and its number
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Runs all replicas of all points on the given pool and returns the
+	 * statistics of the points in the order they were added
+	 */
+	public Statistics[] run(ForkJoinPool pool) {
+		final CounterRandom seeds = new CounterRandom(seed);
+		final Statistics[] result = new Statistics[points.size()];
+
+		pool.invoke(new RecursiveTask<Void>() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected Void compute() {
+				List<Replicas> tasks = new ArrayList<Replicas>();
+				for (int i = 0; i < points.size(); i++)
+					tasks.add(new Replicas(seeds, i, 0, replicas));
+				invokeAll(tasks);
+
+				for (int i = 0; i < result.length; i++)
+					result[i] = tasks.get(i).getRawResult();
+				return null;
+			}
+
+		});
+
+		return result;
+	}
+
+	/**
+	 * Runs the replicas <code>[from, to)</code> of a point and reduces
+	 * their counts
+	 */
+	private class Replicas extends RecursiveTask<Statistics> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final CounterRandom seeds;
+
+		private final int point, from, to;
+
+		private Replicas(CounterRandom seeds, int point, int from, int to) {
+			this.seeds = seeds;
+			this.point = point;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Statistics compute() {
+			if (to-from > 1) {
+				int mid = (from+to) >>> 1;
+				Replicas right = new Replicas(seeds, point, mid, to);
+				right.fork();
+				Statistics s = new Replicas(seeds, point, from, mid).compute();
+				s.merge(right.join());
+				return s;
+			}
+
+			int[] cycles = points.get(point);
+			SharkFishModel model = new SharkFishModel(width, height);
+			model.setSeed(seeds.nextLong(CounterRandom.key(point, from), 0));
+			model.notifyRecycleChanged(cycles[0], cycles[1]);
+			model.fillOceanRandomly(fishes, sharks);
+
+			Statistics s = new Statistics(cycles[0], cycles[1], generations);
+			s.add(0, model.getFishCount(), model.getSharkCount());
+			for (int g = 1; g <= generations; g++) {
+				model.step();
+				s.add(g, model.getFishCount(), model.getSharkCount());
+			}
+			s.replicas = 1;
+
+			return s;
+		}
+
+	}
+
+	/**
+	 * The running mean and sum of squared deviations of the fish and shark
+	 * counts of every generation over a number of replicas (Welford's
+	 * algorithm, merged with the formula of Chan et al.)
+	 */
+	public static class Statistics {
+
+		private final int fishCycle, sharkCycle;
+
+		private int replicas;
+
+		private final double[] fishMean, fishM2, sharkMean, sharkM2;
+
+		private Statistics(int fishCycle, int sharkCycle, int generations) {
+			this.fishCycle = fishCycle;
+			this.sharkCycle = sharkCycle;
+			fishMean = new double[generations+1];
+			fishM2 = new double[generations+1];
+			sharkMean = new double[generations+1];
+			sharkM2 = new double[generations+1];
+		}
+
+		/**
+		 * Records the counts of the only replica
+		 */
+		private void add(int generation, int fish, int sharks) {
+			fishMean[generation] = fish;
+			sharkMean[generation] = sharks;
+		}
+
+		/**
+		 * Adds the replicas of another statistics to this one
+		 */
+		private void merge(Statistics s) {
+			int n = replicas+s.replicas;
+
+			for (int g = 0; g < fishMean.length; g++) {
+				double d = s.fishMean[g]-fishMean[g];
+				fishMean[g] += d*s.replicas/n;
+				fishM2[g] += s.fishM2[g] + d*d*replicas*s.replicas/n;
+
+				d = s.sharkMean[g]-sharkMean[g];
+				sharkMean[g] += d*s.replicas/n;
+				sharkM2[g] += s.sharkM2[g] + d*d*replicas*s.replicas/n;
+			}
+
+			replicas = n;
+		}
+
+		public int getFishCycle() {
+			return fishCycle;
+		}
+
+		public int getSharkCycle() {
+			return sharkCycle;
+		}
+
+		public int getReplicas() {
+			return replicas;
+		}
+
+		public int getGenerations() {
+			return fishMean.length-1;
+		}
+
+		public double getFishMean(int generation) {
+			return fishMean[generation];
+		}
+
+		public double getSharkMean(int generation) {
+			return sharkMean[generation];
+		}
+
+		/**
+		 * Returns the half width of the 95% confidence interval of the
+		 * mean fish count, i.e. the mean is <code>getFishMean(g) &plusmn;
+		 * getFishInterval(g)</code>
+		 */
+		public double getFishInterval(int generation) {
+			return interval(fishM2[generation]);
+		}
+
+		/**
+		 * @see #getFishInterval(int)
+		 */
+		public double getSharkInterval(int generation) {
+			return interval(sharkM2[generation]);
+		}
+
+		private double interval(double m2) {
+			if (replicas < 2)
+				return Double.NaN;
+			return Z95*Math.sqrt(m2/(replicas-1)/replicas);
+		}
+
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.setProperty("java.awt.headless", "true");
+
+		int width = 120, height = 120, generations = 1000, replicas = 10;
+		double fishes = .1, sharks = .05;
+		int[] fishCycles = {2}, sharkCycles = {3};
+		Long seed = null;
+		String output = null;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if ("-size".equals(args[i])) {
+					width = Integer.parseInt(args[++i]);
+					height = Integer.parseInt(args[++i]);
+				} else if ("-generations".equals(args[i])) {
+					generations = Integer.parseInt(args[++i]);
+				} else if ("-replicas".equals(args[i])) {
+					replicas = Integer.parseInt(args[++i]);
+				} else if ("-fill".equals(args[i])) {
+					fishes = Double.parseDouble(args[++i]);
+					sharks = Double.parseDouble(args[++i]);
+				} else if ("-fish".equals(args[i])) {
+					fishCycles = parseRange(args[++i]);
+				} else if ("-shark".equals(args[i])) {
+					sharkCycles = parseRange(args[++i]);
+				} else if ("-seed".equals(args[i])) {
+					seed = Long.parseLong(args[++i]);
+				} else if (output == null && !args[i].startsWith("-")) {
+					output = args[i];
+				} else {
+					throw new IllegalArgumentException();
+				}
+			}
+		} catch (RuntimeException e) {
+			output = null;
+		}
+
+		if (output == null || width < 1 || height < 1 || generations < 0 ||
+				replicas < 1) {
+			usage();
+			System.exit(1);
+		}
+
+		SharkFishEnsemble ensemble = new SharkFishEnsemble(width, height,
+				generations, replicas);
+		ensemble.addGrid(fishCycles, sharkCycles);
+		ensemble.setFill(fishes, sharks);
+		if (seed != null)
+			ensemble.setSeed(seed);
+
+		long start = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool();
+		Statistics[] result;
+		try {
+			result = ensemble.run(pool);
+		} finally {
+			pool.shutdown();
+		}
+		write(result, output);
+
+		start = System.nanoTime()-start;
+		System.err.println(result.length*replicas + " replicas in " +
+				(start*1e-9) + " s (seed " + ensemble.getSeed() + ")");
+	}
+
+	private static void usage() {
+		System.err.println("Usage: ensemble [options] <output.csv>\n" +
+				"  -size <width> <height>  size of the ocean (120 120)\n" +
+				"  -generations <n>        generations to run (1000)\n" +
+				"  -replicas <n>           replicas per point (10)\n" +
+				"  -fill <fish> <sharks>   initial densities (.1 .05)\n" +
+				"  -fish <a[:b]>           fish recycle cycles (2)\n" +
+				"  -shark <a[:b]>          shark recycle cycles (3)\n" +
+				"  -seed <n>               seed of the ensemble");
+	}
+
+	/**
+	 * Parses a single cycle <code>a</code> or the range <code>a:b</code>
+	 */
+	private static int[] parseRange(String s) {
+		int i = s.indexOf(':');
+		int a = Integer.parseInt(i < 0 ? s : s.substring(0, i));
+		int b = i < 0 ? a : Integer.parseInt(s.substring(i+1));
+		if (a < 1 || b < a)
+			throw new IllegalArgumentException();
+
+		int[] range = new int[b-a+1];
+		for (int j = 0; j < range.length; j++)
+			range[j] = a+j;
+		return range;
+	}
+
+	/**
+	 * Writes the statistics of all points as CSV
+	 */
+	public static void write(Statistics[] result, String output)
+			throws IOException {
+		PrintStream csv = new PrintStream(new BufferedOutputStream(
+				new FileOutputStream(output), 1 << 16), false, "US-ASCII");
+
+		try {
+			csv.println("fish cycle,shark cycle,generation,replicas," +
+					"fish mean,fish ci,shark mean,shark ci");
+			for (Statistics s : result) {
+				for (int g = 0; g <= s.getGenerations(); g++) {
+					csv.print(s.getFishCycle());
+					csv.print(',');
+					csv.print(s.getSharkCycle());
+					csv.print(',');
+					csv.print(g);
+					csv.print(',');
+					csv.print(s.getReplicas());
+					csv.print(',');
+					csv.print(s.getFishMean(g));
+					csv.print(',');
+					csv.print(s.getFishInterval(g));
+					csv.print(',');
+					csv.print(s.getSharkMean(g));
+					csv.print(',');
+					csv.print(s.getSharkInterval(g));
+					csv.println();
+				}
+			}
+
+			if (csv.checkError())
+				throw new IOException("Failed to write " + output);
+		} finally {
+			csv.close();
+		}
+	}
+
+}
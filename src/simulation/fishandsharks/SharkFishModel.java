@@ -15,174 +15,418 @@
  */
 package simulation.fishandsharks;
 
+import helpers.CounterRandom;
+import helpers.SimulationExecutor;
+
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Rectangle;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
-import java.util.Map;
-import java.util.Random;
-import java.util.TreeMap;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.swing.JComponent;
+import javax.swing.Scrollable;
 
 import simulation.fishandsharks.Ocean.Cell;
 import simulation.fishandsharks.Ocean.Fish;
 import simulation.fishandsharks.Ocean.Shark;
 
-public class SharkFishModel extends JComponent implements MouseListener {
+public class SharkFishModel extends JComponent implements MouseListener,
+		Scrollable, SimulationExecutor.Simulation<SharkFishModel.Frame> {
 
 	private static final long serialVersionUID = 1L;
 	
 	private static final int BOX_SIZE = 10;
+	
+	/**
+	 * A creature touches at most the cells two rows above or below itself
+	 * (move plus birth), so stripes of at least four rows which are not
+	 * adjacent can be updated at the same time. The border rows of a 
+	 * stripe write into the cells and bit planes of the neighbouring 
+	 * stripes; this is only safe because those are idle in the same phase.
+	 */
+	private static final int STRIPE_HEIGHT = 8;
+	
+	/**
+	 * The minimum number of cells for the parallel step; on smaller oceans
+	 * forking the stripes and merging their populations takes longer than
+	 * the step itself, e.g. 200x200 cells are updated faster sequentially
+	 */
+	private static final int PARALLEL_CELLS = 1 << 17;
 
 	private Ocean ocean;
 	
-	private int generation, fishCnt, sharkCnt, emptyCnt, 
-		fishRebornCycle, sharkRebornCycle;
+	private int generation, fishRebornCycle, sharkRebornCycle;
 
 	private int x0, y0;
 	
 	private Class<? extends Cell> newType;
 	
-	private Map<Integer, int[]> ageDistribution;
+	private ForkJoinPool pool;
+	
+	private Ocean[] views;
+	
+	private long stepTime;
+	
+	/**
+	 * The colours of all cells; a row is coloured again only if it
+	 * changed, and remembers the number of the frame which did it
+	 */
+	private final int[] raster, rowFrames;
+	
+	private int frames;
+	
+	/**
+	 * The image is only touched on the event dispatch thread
+	 */
+	private BufferedImage image;
+	
+	private int[] pixels;
+	
+	/**
+	 * The number of the frame the image shows
+	 */
+	private volatile int painted;
+	
+	/**
+	 * The size of a cell on the screen
+	 */
+	private double box;
+	
+	private Executor editor;
+	
+	private PopulationHistory history;
 
 	public SharkFishModel(int width, int height) {
 		ocean = new Ocean(width, height);
-		generation = fishCnt = sharkCnt = 0;
-		emptyCnt = width*height;
+		generation = 0;
+		raster = new int[width*height];
+		rowFrames = new int[height];
 		setPreferredSize(new Dimension(BOX_SIZE*width, BOX_SIZE*height));
-		setMinimumSize(getPreferredSize());
-		setMaximumSize(getPreferredSize());
 		addMouseListener(this);
 		
 		fishRebornCycle = 2;
 		sharkRebornCycle = 3;
-		
-		ageDistribution = new TreeMap<Integer, int[]>();
 	}
 	
 	public int getGeneration() {
 		return generation;
 	}
 	
+	void setGeneration(int generation) {
+		this.generation = generation;
+	}
+	
+	Ocean getOcean() {
+		return ocean;
+	}
+	
+	/**
+	 * Seeds all random decisions of this model, so that runs with the 
+	 * same seed and parameters yield the same oceans
+	 */
+	public void setSeed(long seed) {
+		ocean.setRandom(new CounterRandom(seed));
+		views = null;
+	}
+	
+	public long getSeed() {
+		return ocean.getRandom().getSeed();
+	}
+	
+	public int getFishRebornCycle() {
+		return fishRebornCycle;
+	}
+	
+	public int getSharkRebornCycle() {
+		return sharkRebornCycle;
+	}
+	
+	/**
+	 * Returns the duration of the last step in nanoseconds
+	 */
+	public long getStepTime() {
+		return stepTime;
+	}
+	
 	public int getFishCount() {
-		return fishCnt;
+		return ocean.getPopulation().getFishCount();
 	}
 	
 	public int getSharkCount() {
-		return sharkCnt;
+		return ocean.getPopulation().getSharkCount();
 	}
 	
 	public int getEmptyCount() {
-		return emptyCnt;
+		return ocean.getWidth()*ocean.getHeight()-getFishCount()-
+				getSharkCount();
 	}
 	
 	
-	public void place(int x, int y, Cell c) {
+	public synchronized void place(int x, int y, Cell c) {
 		ocean.setField(x, y, c);
 	}
 	
-	public Map<Integer, int[]> getAgeDistribution() {
-		return ageDistribution;
+	/**
+	 * @see Population#getAgeDistribution()
+	 */
+	public int[][] getAgeDistribution() {
+		return ocean.getPopulation().getAgeDistribution();
 	}
 
+	/**
+	 * Records the fish, shark and empty counts of every generation to the
+	 * given history, or to none with <code>null</code>
+	 */
+	public synchronized void setHistory(PopulationHistory history) {
+		this.history = history;
+	}
+	
+	public synchronized PopulationHistory getHistory() {
+		return history;
+	}
+	
 	public void notifyPlaceModeChanged(Class<? extends Cell> type) {
 		this.newType = type;
 	}
 	
+	/**
+	 * Runs the changes made with the mouse on the given executor, which
+	 * is usually the one stepping this model; without an editor the
+	 * mouse is ignored
+	 */
+	public void setEditor(Executor editor) {
+		this.editor = editor;
+	}
+	
+	/**
+	 * Switches between the sequential step and the parallel step which 
+	 * updates alternating row stripes of the ocean on a fork-join pool;
+	 * oceans of less than {@link #PARALLEL_CELLS} cells are always updated
+	 * sequentially
+	 */
+	public void setParallel(boolean parallel) {
+		if (parallel && pool == null)
+			pool = new ForkJoinPool();
+		else if (!parallel && pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+	
+	public boolean isParallel() {
+		return pool != null;
+	}
+	
 	public void notifyRecycleChanged(int fishCycle, int sharkCycle) {
 		this.fishRebornCycle = fishCycle;
 		this.sharkRebornCycle = sharkCycle;
 	}
 	
-	public void fillOceanRandomly(double fishes, double sharks) {
-		Class<? extends Cell> b4 = newType;
-		Random r = new Random();
-		int w = ocean.getWidth(), h = ocean.getHeight();
+	/**
+	 * Replaces all creatures by the given densities of fish and sharks
+	 */
+	public synchronized void fillOceanRandomly(double fishes, 
+			double sharks) {
+		long n = (long) ocean.getWidth()*ocean.getHeight();
+		int fish = (int) Math.max(0, Math.min(n, Math.round(n*fishes)));
+		int shark = (int) Math.max(0, Math.min(n-fish, Math.round(n*sharks)));
 		
-		// Create random fishes
-		newType = Fish.class;
-		for (int i = 0; i < Math.round(w * h * fishes); i++)
-			ocean.setField(r.nextInt(w), r.nextInt(h), getNewCellInstance());
-
-		// Create random sharks
-		newType = Shark.class;
-		for (int i = 0; i < Math.round(w * h * sharks); i++)
-			ocean.setField(r.nextInt(w), r.nextInt(h), getNewCellInstance());
-		
-		// Repaint and reset everything
-		newType = b4;
-		repaint();
+		ocean.fillRandomly(fish, shark, generation, pool);
 	}
 	
-	private Cell getNewCellInstance() {
-		if (newType == null)
+	private Cell getNewCellInstance(Class<? extends Cell> type) {
+		if (type == null)
 			return null;
-		else
-			try {
-				Cell c = newType.newInstance();
-				c.setGeneration(generation);
-				return c;
-			} catch (Exception e1) {
-				System.out.println("Failed to place new cell: " + e1);
-			}
-		return null;
+		
+		Cell c;
+		try {
+			c = type.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Failed to place new cell", e);
+		}
+		c.setGeneration(generation);
+		return c;
 	}
 
-	public void step() {
+	@Override
+	public synchronized void step() {
 		long start = System.nanoTime();
+		int stripes = ocean.getHeight()/STRIPE_HEIGHT;
 		
-		for (int y = 0; y < ocean.getHeight(); y++) {
-			for (int x = 0; x < ocean.getWidth(); x++) {
-				Cell c = ocean.getField(x, y);
-				if (c != null && c.isPending(generation))
-					c.update(ocean, x, y, generation, 
-							fishRebornCycle, sharkRebornCycle);
+		if (pool == null || stripes < 2 || 
+				(long) ocean.getWidth()*ocean.getHeight() < PARALLEL_CELLS) {
+			updateRows(ocean, 0, ocean.getHeight());
+		} else {
+			if (views == null || views.length != stripes) {
+				views = new Ocean[stripes];
+				for (int i = 0; i < views.length; i++)
+					views[i] = ocean.createView();
 			}
+			
+			// With an odd number of stripes the first and the last one are
+			// neighbours, so the last stripe gets a phase of its own
+			int last = stripes%2 == 0 ? stripes : stripes-1;
+			int first = generation%2;
+			
+			pool.invoke(new StripeUpdate(first, first == 0 ? last : stripes, 
+					stripes));
+			pool.invoke(new StripeUpdate(1-first, first == 0 ? stripes : last, 
+					stripes));
+			if (last != stripes)
+				updateRows(views[last], stripeStart(last, stripes), 
+						ocean.getHeight());
+			
+			// Collect the population changes of all stripes
+			for (Ocean view : views)
+				ocean.getPopulation().merge(view.getPopulation());
 		}
 		
-		// Statistics
-		emptyCnt = fishCnt = sharkCnt = 0;
-		ageDistribution.clear();
+		generation++;
 		
-		for (int y = 0; y < ocean.getHeight(); y++) {
-			for (int x = 0; x < ocean.getWidth(); x++) {
-				
-				Cell c = ocean.getField(x, y);
-				
-				if (c == null)
-					emptyCnt++;
-				else if (c instanceof Fish)
-					fishCnt++;
-				else if (c instanceof Shark)
-					sharkCnt++;
-			
-				if (c != null) {
-					int[] spAge = ageDistribution.get(c.getAge());
-					
-					if (spAge == null)
-						spAge = new int[2];
-					
-					if (c instanceof Fish)
-						spAge[0]++;
-					else 
-						spAge[1]++;
-					
-					ageDistribution.put(c.getAge(), spAge);
-					
+		// The frames may skip generations, so the counts are recorded here
+		if (history != null)
+			history.add(getFishCount(), getSharkCount(), getEmptyCount());
+		
+		stepTime = System.nanoTime()-start;
+	}
+	
+	/**
+	 * Takes the statistics of the ocean together with the colours of the
+	 * rows which changed since the frame the image shows
+	 */
+	@Override
+	public synchronized Frame getFrame() {
+		int w = ocean.getWidth(), h = ocean.getHeight();
+		int shown = painted, changed = 0;
+		
+		frames++;
+		for (int y = 0; y < h; y++) {
+			if (ocean.takeDirty(y)) {
+				for (int x = 0, i = y*w; x < w; x++, i++) {
+					Cell c = ocean.getField(x, y);
+					raster[i] = (c == null ? Cell.OCEAN_LIGHT : c.getColor())
+							.getRGB();
 				}
-				
+				rowFrames[y] = frames;
 			}
+			if (rowFrames[y] > shown)
+				changed++;
 		}
 		
-		generation++;
+		// A dropped frame is covered by the next one, as it contains all
+		// rows which changed since the image was updated
+		int[] rows = new int[changed], colors = new int[changed*w];
+		for (int y = 0, k = 0; y < h; y++) {
+			if (rowFrames[y] > shown) {
+				System.arraycopy(raster, y*w, colors, k*w, w);
+				rows[k++] = y;
+			}
+		}
 		
-		start = System.nanoTime()-start;
-		System.out.println("Step: " + start + " ns = " + (start*1e-9));
+		return new Frame(frames, generation, getFishCount(), getSharkCount(), 
+				getEmptyCount(), getAgeDistribution(), w, h, rows, colors);
+	}
+	
+	/**
+	 * Copies the rows of the given frame into the image and paints it;
+	 * this is called on the event dispatch thread
+	 */
+	public void setFrame(Frame frame) {
+		if (frame.number <= painted)
+			return;
+		
+		int w = frame.width;
+		if (image == null) {
+			image = new BufferedImage(w, frame.height, 
+					BufferedImage.TYPE_INT_RGB);
+			pixels = ((DataBufferInt) image.getRaster().getDataBuffer())
+					.getData();
+		}
+		for (int k = 0; k < frame.rows.length; k++)
+			System.arraycopy(frame.colors, k*w, pixels, frame.rows[k]*w, w);
+		painted = frame.number;
 		
 		repaint();
 	}
 	
+	private void updateRows(Ocean o, int from, int to) {
+		int width = o.getWidth();
+		
+		// Visit the ocean tile by tile, so that the cells and bit plane
+		// words around the current creature stay in the cache
+		for (int top = from; top < to; 
+				top = (top/Ocean.TILE_HEIGHT+1)*Ocean.TILE_HEIGHT) {
+			int bottom = Math.min(to, (top/Ocean.TILE_HEIGHT+1)*
+					Ocean.TILE_HEIGHT);
+			
+			for (int left = 0; left < width; left += Ocean.TILE_WIDTH) {
+				int right = Math.min(width, left+Ocean.TILE_WIDTH);
+				
+				for (int y = top; y < bottom; y++) {
+					// Only visit the cells which hold a creature; their
+					// neighbours are taken from whole words of the planes
+					int x = o.nextOccupied(left, y, right);
+					if (x >= 0)
+						o.prepareNeighbourWords(y, left >>> 6);
+					for (; x >= 0; x = o.nextOccupied(x+1, y, right)) {
+						Cell c = o.getField(x, y);
+						if (c != null && c.isPending(generation))
+							c.update(o, x, y, generation, 
+									fishRebornCycle, sharkRebornCycle);
+					}
+				}
+			}
+		}
+		
+		// Other views change the bit planes in the next phase
+		o.releaseNeighbourWords();
+	}
+	
+	private int stripeStart(int stripe, int stripes) {
+		return stripe*ocean.getHeight()/stripes;
+	}
+	
+	/**
+	 * Updates every second stripe out of <code>[first, last)</code>
+	 */
+	private class StripeUpdate extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int first, last, stripes;
+		
+		private StripeUpdate(int first, int last, int stripes) {
+			this.first = first;
+			this.last = last;
+			this.stripes = stripes;
+		}
+		
+		@Override
+		protected void compute() {
+			int count = (last-first+1)/2;
+			
+			if (count < 1)
+				return;
+			
+			if (count == 1) {
+				updateRows(views[first], stripeStart(first, stripes), 
+						stripeStart(first+1, stripes));
+				return;
+			}
+			
+			int mid = first+2*(count/2);
+			invokeAll(new StripeUpdate(first, mid, stripes),
+					new StripeUpdate(mid, last, stripes));
+		}
+		
+	}
+	
 	@Override
 	public String toString() {
 		return ocean.toString();
@@ -190,55 +434,86 @@ public class SharkFishModel extends JComponent implements MouseListener {
 
 	@Override
 	public void paint(Graphics g) {
-		// Set the base offset so that the ocean is displayed
-		// in the middle of the view port
-		x0 = (getWidth()-ocean.getWidth()*BOX_SIZE)/2;
-		y0 = (getHeight()-ocean.getHeight()*BOX_SIZE)/2;
-		x0 = x0 < 0 ? 0 : x0;
-		y0 = y0 < 0 ? 0 : y0;
+		int w = ocean.getWidth(), h = ocean.getHeight();
+		
+		// Scale the ocean to the view port and display it in the middle
+		box = Math.min(getWidth()/(double) w, getHeight()/(double) h);
+		int width = (int) (w*box), height = (int) (h*box);
+		x0 = (getWidth()-width)/2;
+		y0 = (getHeight()-height)/2;
 		
 		// Paint the ocean
 		g.setColor(Cell.OCEAN_DARK);
 		g.fillRect(0, 0, getWidth(), getHeight());
 		
-		// Paint all cells
-		for (int y = 0; y < ocean.getHeight(); y++) {
-			for (int x = 0; x < ocean.getWidth(); x++) {
-				Cell c = ocean.getField(x, y);
-				
-				if (c == null) {
-					// The empty cell
-					g.setColor(Cell.OCEAN_LIGHT);
-					g.fillRect(x0+x*BOX_SIZE+2, y0+y*BOX_SIZE+2, 
-							BOX_SIZE-4, BOX_SIZE-4);
-				} else {
-					// A fish or a shark
-					g.setColor(c.getColor());
-					
-					if (c instanceof Shark && ((Shark) c).lifeIndex > 1)
-						g.fillRect(x0+x*BOX_SIZE+1, y0+y*BOX_SIZE+1, 
-								BOX_SIZE-2, BOX_SIZE-2);
-					else
-						g.fillRect(x0+x*BOX_SIZE+2, y0+y*BOX_SIZE+2, 
-								BOX_SIZE-4, BOX_SIZE-4);
-				}
-			}
-		}
+		// The image holds one pixel per cell and is missing until the first
+		// frame arrived
+		if (image == null)
+			return;
+		
+		// Paint all cells at once and the gaps between them on top
+		g.drawImage(image, x0, y0, width, height, null);
+		
+		int gap = (int) (box*2/5);
+		if (gap < 1)
+			return;
+		g.setColor(Cell.OCEAN_DARK);
+		for (int x = 0; x <= w; x++)
+			g.fillRect(x0+(int) (x*box)-gap/2, y0, gap, height);
+		for (int y = 0; y <= h; y++)
+			g.fillRect(x0, y0+(int) (y*box)-gap/2, width, gap);
+	}
+	
+	/**
+	 * The ocean is scaled to the view port instead of being scrolled
+	 */
+	@Override
+	public Dimension getPreferredScrollableViewportSize() {
+		return getPreferredSize();
+	}
+	
+	@Override
+	public int getScrollableUnitIncrement(Rectangle visibleRect, 
+			int orientation, int direction) {
+		return BOX_SIZE;
+	}
+	
+	@Override
+	public int getScrollableBlockIncrement(Rectangle visibleRect, 
+			int orientation, int direction) {
+		return BOX_SIZE;
+	}
+	
+	@Override
+	public boolean getScrollableTracksViewportWidth() {
+		return true;
+	}
+	
+	@Override
+	public boolean getScrollableTracksViewportHeight() {
+		return true;
 	}
 
 	@Override
 	public void mouseClicked(MouseEvent e) {
-		if (!isEnabled())
+		if (!isEnabled() || box == 0 || editor == null)
 			return;
 		
 		// Get coordinates on field
-		int x = (e.getX()-x0)/BOX_SIZE, y = (e.getY()-y0)/BOX_SIZE;
+		final int x = (int) Math.floor((e.getX()-x0)/box), 
+			y = (int) Math.floor((e.getY()-y0)/box);
 		if (x < 0 || y < 0 || x >= ocean.getWidth() || y >= ocean.getHeight())
 			return;
 			
-		// Place a new object and repaint
-		place(x, y, getNewCellInstance());
-		repaint();
+		// Place a new object, the editor publishes a new frame afterwards
+		final Class<? extends Cell> type = newType;
+		editor.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				place(x, y, getNewCellInstance(type));
+			}
+		});
 	}
 
 	@Override
@@ -253,4 +528,65 @@ public class SharkFishModel extends JComponent implements MouseListener {
 	@Override
 	public void mouseExited(MouseEvent e) { }
 	
+	/**
+	 * The immutable statistics of the ocean after a step together with the
+	 * colours of the rows which changed since an earlier frame
+	 */
+	public static class Frame {
+		
+		private final int number, generation, fishCount, sharkCount, 
+				emptyCount, width, height;
+		
+		private final int[][] ages;
+		
+		private final int[] rows, colors;
+		
+		private Frame(int number, int generation, int fishCount, 
+				int sharkCount, int emptyCount, int[][] ages, int width, 
+				int height, int[] rows, int[] colors) {
+			this.number = number;
+			this.generation = generation;
+			this.fishCount = fishCount;
+			this.sharkCount = sharkCount;
+			this.emptyCount = emptyCount;
+			this.ages = ages;
+			this.width = width;
+			this.height = height;
+			this.rows = rows;
+			this.colors = colors;
+		}
+		
+		public int getGeneration() {
+			return generation;
+		}
+		
+		public int getFishCount() {
+			return fishCount;
+		}
+		
+		public int getSharkCount() {
+			return sharkCount;
+		}
+		
+		public int getEmptyCount() {
+			return emptyCount;
+		}
+		
+		/**
+		 * @see Population#getAgeDistribution()
+		 */
+		public int[][] getAgeDistribution() {
+			return ages;
+		}
+		
+		public int getWidth() {
+			return width;
+		}
+		
+		public int getHeight() {
+			return height;
+		}
+		
+	}
+	
 }
@@ -16,6 +16,7 @@
 package simulation.fishandsharks;
 
 import helpers.SimpleForm;
+import helpers.SimulationExecutor;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
@@ -25,6 +26,7 @@ import java.awt.event.ActionListener;
 
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
@@ -35,7 +37,6 @@ import javax.swing.JSpinner;
 import javax.swing.JToggleButton;
 import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingConstants;
-import javax.swing.Timer;
 import javax.swing.border.EmptyBorder;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -43,20 +44,29 @@ import javax.swing.event.ChangeListener;
 import simulation.fishandsharks.Ocean.Cell;
 import simulation.fishandsharks.Ocean.Fish;
 import simulation.fishandsharks.Ocean.Shark;
+import simulation.fishandsharks.SharkFishModel.Frame;
 
-public class SharkFishSimulationGui extends JPanel implements ActionListener {
+public class SharkFishSimulationGui extends JPanel implements ActionListener,
+		SimulationExecutor.FrameListener<Frame> {
  
 	private static final long serialVersionUID = 1L;
 	
+	/**
+	 * The frame rate in the max speed mode
+	 */
+	private static final int FRAMES_PER_SECOND = 25;
+	
     private JButton stepButton, newButton, placeRandom;
     
     private JLabel generationCnt, fishCnt, sharkCnt;
 
     private JSlider slider;
     
+    private JCheckBox maxSpeed, parallel;
+    
     private SharkFishModel gol;
     
-    private Timer timer;
+    private SimulationExecutor<Frame> executor;
  
     public SharkFishSimulationGui() {
         super(new BorderLayout());
@@ -77,8 +87,16 @@ public class SharkFishSimulationGui extends JPanel implements ActionListener {
 		
 		@Override
 		public void stateChanged(ChangeEvent e) {
-			gol.notifyRecycleChanged((int) newbornFish.getValue(),
-					(int) newbornShark.getValue());
+			final int fishCycle = (int) newbornFish.getValue(), 
+					sharkCycle = (int) newbornShark.getValue();
+			final SharkFishModel model = gol;
+			executor.execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					model.notifyRecycleChanged(fishCycle, sharkCycle);
+				}
+			});
 		}
 	};
     
@@ -111,8 +129,13 @@ public class SharkFishSimulationGui extends JPanel implements ActionListener {
 		slider.setPaintTicks(true);
 		slider.setValue(2);
 		
-		rows = new JSpinner(new SpinnerNumberModel(42, 2, 120, 1));
-		cols = new JSpinner(new SpinnerNumberModel(42, 2, 120, 1));
+		maxSpeed = new JCheckBox("Max speed");
+		
+		parallel = new JCheckBox("Parallel step");
+		parallel.addActionListener(this);
+		
+		rows = new JSpinner(new SpinnerNumberModel(42, 2, 2000, 1));
+		cols = new JSpinner(new SpinnerNumberModel(42, 2, 2000, 1));
 		
 		newbornFish = new JSpinner(new SpinnerNumberModel(2, 1, 10, 1));
 		newbornFish.addChangeListener(cycleListener);
@@ -148,7 +171,8 @@ public class SharkFishSimulationGui extends JPanel implements ActionListener {
 		
 		// Set initial values
 		setEnabled(false, stepButton, autoToggle, placeFish, placeShark, 
-				placeNothing, placeRandom, slider, newbornFish, newbornShark);
+				placeNothing, placeRandom, slider, maxSpeed, parallel, 
+				newbornFish, newbornShark);
 		
 		// Lay-out components
         setLayout(new BorderLayout(4, 4));
@@ -173,6 +197,8 @@ public class SharkFishSimulationGui extends JPanel implements ActionListener {
         	.addLastField(newbornShark)
         	.addSeperator("Simulation")
         	.addLastField(slider)
+        	.addLastField(maxSpeed)
+        	.addLastField(parallel)
         	.addMultiField(autoToggle, stepButton)
         	.addSeperator("Statistics")
         	.addLabel("Year / G:")
@@ -204,9 +230,18 @@ public class SharkFishSimulationGui extends JPanel implements ActionListener {
     	}
     	
     	if (evt.getSource() == newButton) {
-    		// Create a new model
+    		// Create a new model which is stepped on a thread of its own
+    		if (executor != null)
+    			executor.shutdown();
     		gol = new SharkFishModel((int) rows.getValue(), 
     				(int) cols.getValue());
+    		executor = new SimulationExecutor<Frame>("Wa-Tor", gol, this);
+    		gol.setEditor(executor);
+    		
+    		// The model records every generation, even if frames are dropped
+    		PopulationHistory history = new PopulationHistory(3);
+    		gol.setHistory(history);
+    		populationDiagram.setHistory(history);
     		
     		// Add it to the view
     		scroll.getViewport().removeAll();
@@ -214,43 +249,47 @@ public class SharkFishSimulationGui extends JPanel implements ActionListener {
     		
     		// Enable editor components
     		setEnabled(true, stepButton, autoToggle, placeFish, 
-    				placeShark, placeNothing, slider, placeRandom, 
-    				newbornFish, newbornShark);
+    				placeShark, placeNothing, slider, maxSpeed, parallel, 
+    				placeRandom, newbornFish, newbornShark);
     		
     		// De-select all place buttons
     		placeFish.setSelected(true);
     		gol.notifyPlaceModeChanged(Fish.class);
+    		gol.setParallel(parallel.isSelected());
+    		
+    		// The empty ocean is painted from a first frame
+    		executor.refresh();
     	}
 
+    	if (evt.getSource() == parallel) {
+    		// Only large oceans are updated in parallel, see setParallel()
+    		final boolean enabled = parallel.isSelected();
+    		final SharkFishModel model = gol;
+    		executor.execute(new Runnable() {
+    			
+    			@Override
+    			public void run() {
+    				model.setParallel(enabled);
+    			}
+    		});
+    	}
+    	
     	if ("step".equals(evt.getActionCommand())) {
-    		// Perform a step
-    		gol.step();
-    		
-    		// Update the statistical data
-    		generationCnt.setText(String.valueOf(gol.getGeneration()));
-    		
-    		// Update statistical data
-    		populationDiagram.addData(gol.getFishCount(), 
-    				gol.getSharkCount(), gol.getEmptyCount());
-    		fishCnt.setText(String.valueOf(gol.getFishCount()));
-    		sharkCnt.setText(String.valueOf(gol.getSharkCount()));
-    		
-    		popVar.setData(gol.getAgeDistribution());
+    		// Perform a step, the result arrives in frameReady()
+    		executor.step();
     	}
     	
     	if ("auto".equals(evt.getActionCommand())) {
-    		if (autoToggle.isSelected()) {
-    			timer = new Timer(1000/slider.getValue(), this);
-    			timer.setActionCommand("step");
-    			timer.start();
-    		} else {
-    			timer.stop();
-    			timer = null;
-    		}
+    		if (autoToggle.isSelected() && maxSpeed.isSelected())
+    			executor.startMaxSpeed(FRAMES_PER_SECOND);
+    		else if (autoToggle.isSelected())
+    			executor.start(slider.getValue());
+    		else
+    			executor.stop();
     		
     		// Disable other components
     		setEnabled(!autoToggle.isSelected(), stepButton, placeFish, 
-    				placeRandom, placeShark, placeNothing, slider, 
+    				placeRandom, placeShark, placeNothing, slider, maxSpeed, 
     				newButton, cols, rows, gol, newbornFish, newbornShark);
     		
     		// Manage caption
@@ -268,12 +307,36 @@ public class SharkFishSimulationGui extends JPanel implements ActionListener {
     				.addLabel("% of sharks:").addLastField(sharks), 
     			"Random fill", JOptionPane.OK_CANCEL_OPTION);
     		
-    		if (retVal == JOptionPane.OK_OPTION)
-    			gol.fillOceanRandomly((double) fishes.getValue(), 
-    					(double) sharks.getValue());
+    		if (retVal == JOptionPane.OK_OPTION) {
+    			final double fish = (double) fishes.getValue(), 
+    					shark = (double) sharks.getValue();
+    			final SharkFishModel model = gol;
+    			executor.execute(new Runnable() {
+    				
+    				@Override
+    				public void run() {
+    					model.fillOceanRandomly(fish, shark);
+    				}
+    			});
+    		}
     	}
     }
     
+    /**
+     * Paints the frame of a step and updates the statistical data
+     */
+    @Override
+    public void frameReady(Frame frame) {
+    	gol.setFrame(frame);
+    	
+    	generationCnt.setText(String.valueOf(frame.getGeneration()));
+    	populationDiagram.repaint();
+    	fishCnt.setText(String.valueOf(frame.getFishCount()));
+    	sharkCnt.setText(String.valueOf(frame.getSharkCount()));
+    	
+    	popVar.setData(frame.getAgeDistribution());
+    }
+    
     public static final void setEnabled(boolean enabled, JComponent...components) {
     	for (JComponent component : components)
 			component.setEnabled(enabled);
@@ -15,50 +15,45 @@
  */
 package simulation.traffic.highway;
 
+import helpers.CounterRandom;
+
 import java.awt.Color;
 
+/**
+ * The kinds of cells which can be placed on a highway together with their
+ * rules. The road itself only keeps the velocity of every car and the
+ * remaining red time of every traffic light in primitive arrays.
+ * <p>
+ * The random decisions of a cell are keyed with the generation and the
+ * position of the cell, so every engine which follows these rules yields
+ * the same road for the same seed.
+ */
 public abstract class HighwayCell {
 
 	public static final int MIN_V = 0, MAX_V = 5;
 	
+	/**
+	 * The draws of the random decisions of cars and traffic lights
+	 */
+	static final int CAR_DRAW = 0, LIGHT_DRAW = 1;
+	
 	public static final Color[] index = {
 		Color.gray, Color.yellow, Color.orange, Color.red, Color.green, Color.black
 	};
 	
-	public Color getVelocityColor() {
-		return index[getVelocity()];
+	public static Color getVelocityColor(int v) {
+		return index[v];
 	}
-
-	public abstract boolean isSolid();
-	
-	public abstract void update(HighwaySimulation road, int pos, int d, int generation);
-	
-	public abstract int getVelocity();
 	
 	public static class Car extends HighwayCell {
 		
-		private int v;
-		
-		public Car() {
-			v = 0;
-		}
-		
-		@Override
-		public int getVelocity() {
-			return v;
-		}
-		
-		@Override
-		public boolean isSolid() {
-			return true;
-		}
-
-		public void accelerate() {
-			v = (v+1)%(MAX_V+1);
-		}
-		
-		@Override
-		public void update(HighwaySimulation road, int pos, int d, int generation) {
+		/**
+		 * Applies the rules to a car with the velocity <code>v</code> and
+		 * <code>d</code> free cells in front of it and returns the new
+		 * velocity, i.e. the number of cells the car moves
+		 */
+		public static int update(int v, int d, double linger, 
+				CounterRandom random, long key) {
 			// Rule 1: speed up
 			v = Math.min(v+1, MAX_V);
 			
@@ -66,71 +61,47 @@ public abstract class HighwayCell {
 			v = Math.min(v, d);
 			
 			// Rule 3: normal linger
-			if (decision(road.getCarLinger()))
+			if (decision(linger, random, key, CAR_DRAW))
 				v = Math.max(v-1, MIN_V);
 			
-			// Rule 4: move car
-			road.setCell(pos+v, this);
+			// Rule 4 (moving the car) is up to the road
+			return v;
 		}
 		
-		@Override
-		public String toString() {
-			return String.valueOf(v);
+		public static int accelerate(int v) {
+			return (v+1)%(MAX_V+1);
 		}
 		
 	}
 	
 	public static class TrafficLight extends HighwayCell {
 
-		private boolean isGreen;
-		
-		private int eta;
-		
-		public TrafficLight() {
-			this.isGreen = true;
-		}
-		
-		@Override
-		public int getVelocity() {
-			return 0;
-		}
-		
-		@Override
-		public boolean isSolid() {
-			return !isGreen;
-		}
-
-		@Override
-		public void update(HighwaySimulation road, int pos, int d, int generation) {
+		/**
+		 * Updates a traffic light with the remaining red time 
+		 * <code>eta</code> and returns the new one; the light is red as
+		 * long as it is positive
+		 */
+		public static int update(int eta, double redProb, int redTime,
+				CounterRandom random, long key) {
 			if (eta > 0)
 				eta--;
 			
-			if (eta == 0) {
-				eta = 0;
-				isGreen = true;
-			}
-			
-			System.out.println("TFL update");
-			
 			// Check if good to make red
-			if (decision(road.getTrafficLightRedProb()) && eta == 0) {
-				eta = road.getTrafficLightRedTime();
-				isGreen = false;
-			}
+			if (decision(redProb, random, key, LIGHT_DRAW) && eta == 0)
+				eta = Math.max(1, redTime);
 			
-			// Set the traffic light on the same location
-			road.setCell(pos, this);
+			return eta;
 		}
 		
-		@Override
-		public String toString() {
-			return isGreen ? "G" : "R";
-		}
-
 	}
 	
 	public static boolean decision(double probability) {
 		return Math.random() <= probability;
 	}
 	
+	public static boolean decision(double probability, CounterRandom random,
+			long key, int draw) {
+		return random.nextDouble(key, draw) <= probability;
+	}
+	
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2013 maxstrauch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package simulation.traffic.highway;
+
+import helpers.CounterRandom;
+
+import java.util.Arrays;
+
+import simulation.traffic.highway.HighwayCell.Car;
+import simulation.traffic.highway.HighwayCell.TrafficLight;
+
+/**
+ * A highway which keeps only the cars and the traffic lights instead of
+ * every cell, so that a step costs time in the number of cars and lights
+ * and not in the length of the road. The positions of the cars are kept
+ * in the order of the road, and the gap of a car is the distance to the
+ * next car or to the next red light, which is looked up in the sorted
+ * positions of the lights.
+ * <p>
+ * The cars and lights follow the rules of {@link HighwayCell} with the
+ * same random decisions as {@link HighwaySimulation}, so both yield the
+ * same road for the same seed.
+ */
+public class HighwayParticles {
+
+	private final int length;
+
+	/**
+	 * The positions and velocities of the cars in the order of the road,
+	 * starting at the car with the smallest position
+	 */
+	private int[] positions = new int[16];
+
+	private byte[] velocities = new byte[16];
+
+	private int cars, first;
+
+	/**
+	 * The sorted positions of the traffic lights and their remaining red
+	 * times
+	 */
+	private int[] lights = new int[4], eta = new int[4];
+
+	private int lightCount;
+
+	private int generation, redTime;
+
+	private double carLinger, redLightProb, averageVelocity;
+
+	private CounterRandom random = new CounterRandom();
+
+	public HighwayParticles(int length) {
+		if (length < 1)
+			throw new IllegalArgumentException();
+
+		this.length = length;
+	}
+
+	/**
+	 * Copies the cars, lights and parameters of a cell-based road
+	 */
+	public HighwayParticles(HighwaySimulation road) {
+		this(road.length());
+
+		for (int p = 0; p < length; p++) {
+			if (road.getVelocity(p) != HighwaySimulation.EMPTY)
+				addCar(p, road.getVelocity(p));
+			if (road.getEta(p) != HighwaySimulation.EMPTY)
+				addLight(p, road.getEta(p));
+		}
+
+		generation = road.getGeneration();
+		carLinger = road.getCarLinger();
+		redLightProb = road.getTrafficLightRedProb();
+		redTime = road.getTrafficLightRedTime();
+		random = new CounterRandom(road.getSeed());
+	}
+
+	/**
+	 * @see HighwaySimulation#setSeed(long)
+	 */
+	public void setSeed(long seed) {
+		random = new CounterRandom(seed);
+	}
+
+	public long getSeed() {
+		return random.getSeed();
+	}
+
+	public void setCarLinger(double carLinger) {
+		this.carLinger = carLinger;
+	}
+
+	public void setTrafficLightRedProb(double redLightProb) {
+		this.redLightProb = redLightProb;
+	}
+
+	public void setTrafficLightRedTime(int redTime) {
+		this.redTime = redTime;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	public double getAverageVelocity() {
+		return Math.round(averageVelocity*100d)/100d;
+	}
+
+	public int getCarCount() {
+		return cars;
+	}
+
+	/**
+	 * Returns the position of the <code>k</code>-th car of the road
+	 */
+	public int getPosition(int k) {
+		return positions[(first+k)%cars];
+	}
+
+	/**
+	 * Returns the velocity of the <code>k</code>-th car of the road
+	 */
+	public int getVelocity(int k) {
+		return velocities[(first+k)%cars];
+	}
+
+	/**
+	 * Places a car at the given position or sets the velocity of the car
+	 * which is there already
+	 */
+	public void addCar(int p, int v) {
+		if (p < 0 || p >= length || v < HighwayCell.MIN_V || 
+				v > HighwayCell.MAX_V)
+			throw new IllegalArgumentException();
+
+		// Start the order at the first car again
+		if (first != 0) {
+			positions = rotate(positions, first, cars);
+			velocities = rotate(velocities, first, cars);
+			first = 0;
+		}
+
+		int k = Arrays.binarySearch(positions, 0, cars, p);
+		if (k < 0) {
+			k = -k-1;
+			if (cars == positions.length) {
+				positions = Arrays.copyOf(positions, 2*cars);
+				velocities = Arrays.copyOf(velocities, 2*cars);
+			}
+			System.arraycopy(positions, k, positions, k+1, cars-k);
+			System.arraycopy(velocities, k, velocities, k+1, cars-k);
+			positions[k] = p;
+			cars++;
+		}
+		velocities[k] = (byte) v;
+	}
+
+	/**
+	 * Places a traffic light at the given position which stays red for
+	 * the given time, or sets the red time of the light there already
+	 */
+	public void addLight(int p, int eta) {
+		if (p < 0 || p >= length || eta < 0)
+			throw new IllegalArgumentException();
+
+		int k = Arrays.binarySearch(lights, 0, lightCount, p);
+		if (k < 0) {
+			k = -k-1;
+			if (lightCount == lights.length) {
+				lights = Arrays.copyOf(lights, 2*lightCount);
+				this.eta = Arrays.copyOf(this.eta, 2*lightCount);
+			}
+			System.arraycopy(lights, k, lights, k+1, lightCount-k);
+			System.arraycopy(this.eta, k, this.eta, k+1, lightCount-k);
+			lights[k] = p;
+			lightCount++;
+		}
+		this.eta[k] = eta;
+	}
+
+	public void step() {
+		double tmpAvgV = 0;
+
+		// The last car looks at the first one before it moved; a car
+		// moved over the end of the road becomes the new first one
+		int head = positions[first], newFirst = first, light = 0;
+		for (int k = 0, i = first; k < cars; k++) {
+			int p = positions[i], j = i+1 == cars ? 0 : i+1;
+			int gap = (k == cars-1 ? head : positions[j])-p-1;
+			if (gap < 0)
+				gap += length;
+			gap = Math.min(gap, HighwayCell.MAX_V);
+
+			while (light < lightCount && lights[light] <= p)
+				light++;
+			gap = Math.min(gap, redLightGap(p, light, gap));
+
+			int v = Car.update(velocities[i], gap, carLinger, random,
+					CounterRandom.key(generation, p));
+			velocities[i] = (byte) v;
+			positions[i] = p+v;
+			if (p+v >= length) {
+				positions[i] -= length;
+				if (newFirst == first)
+					newFirst = i;
+			}
+			tmpAvgV += v;
+
+			i = j;
+		}
+		first = newFirst;
+
+		for (int l = 0; l < lightCount; l++)
+			eta[l] = TrafficLight.update(eta[l], redLightProb, redTime,
+					random, CounterRandom.key(generation, lights[l]));
+
+		// Create statistics
+		if (cars > 0)
+			averageVelocity = (averageVelocity+(tmpAvgV/cars))/2;
+
+		generation++;
+	}
+
+	/**
+	 * Returns the number of free cells in front of the car at 
+	 * <code>p</code> up to the first red light, if it is closer than
+	 * <code>gap</code>; <code>light</code> is the first light behind the
+	 * car
+	 */
+	private int redLightGap(int p, int light, int gap) {
+		for (int t = 0; t < lightCount; t++) {
+			int l = light+t, d = l < lightCount ? lights[l]-p :
+				lights[l-lightCount]+length-p;
+			if (d > gap)
+				break;
+			if (eta[l < lightCount ? l : l-lightCount] > 0)
+				return d-1;
+		}
+		return gap;
+	}
+
+	private static int[] rotate(int[] a, int first, int n) {
+		int[] b = new int[a.length];
+		System.arraycopy(a, first, b, 0, n-first);
+		System.arraycopy(a, 0, b, n-first, first);
+		return b;
+	}
+
+	private static byte[] rotate(byte[] a, int first, int n) {
+		byte[] b = new byte[a.length];
+		System.arraycopy(a, first, b, 0, n-first);
+		System.arraycopy(a, 0, b, n-first, first);
+		return b;
+	}
+
+}
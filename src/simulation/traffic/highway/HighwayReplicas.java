@@ -0,0 +1,351 @@
+/*
+ * Copyright 2013 maxstrauch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package simulation.traffic.highway;
+
+import helpers.CounterRandom;
+
+import java.util.Arrays;
+
+/**
+ * Runs 64 replicas of a highway at once. Every cell is a set of
+ * <code>long</code> words whose bit <code>r</code> belongs to the replica
+ * <code>r</code>: one word tells which replicas have a car there and three
+ * hold the bits of its velocity. The remaining red times of the traffic 
+ * lights are bit-sliced the same way. A step applies the rules of 
+ * {@link HighwayCell} to all replicas with bitwise logic.
+ * <p>
+ * All replicas start from the same road, but every replica makes its own
+ * random decisions, which are drawn for all of them at once: a decision
+ * with the probability <code>p</code> compares 64 random numbers with 
+ * <code>p</code> bit by bit, so <code>p</code> is rounded to a multiple
+ * of <code>2^-PRECISION</code>.
+ */
+public class HighwayReplicas {
+
+	public static final int REPLICAS = 64;
+
+	/**
+	 * The number of bits of the probabilities of the random decisions
+	 */
+	public static final int PRECISION = 16;
+
+	private final int length;
+
+	/**
+	 * The cars and the bits of their velocities on every cell, and the
+	 * buffers for the next step
+	 */
+	private long[] cars, v0, v1, v2, nextCars, nextV0, nextV1, nextV2;
+
+	/**
+	 * The sorted positions of the traffic lights, the bits of their
+	 * remaining red times and whether they are red
+	 */
+	private int[] lights;
+
+	private long[][] eta;
+
+	private long[] red;
+
+	private int generation, redTime;
+
+	private double carLinger, redLightProb;
+
+	private long velocitySum, carCount;
+
+	private CounterRandom random;
+
+	/**
+	 * Creates 64 replicas of the current state of a road
+	 */
+	public HighwayReplicas(HighwaySimulation road) {
+		length = road.length();
+		cars = new long[length];
+		v0 = new long[length];
+		v1 = new long[length];
+		v2 = new long[length];
+		nextCars = new long[length];
+		nextV0 = new long[length];
+		nextV1 = new long[length];
+		nextV2 = new long[length];
+
+		int n = 0, maxEta = 1;
+		for (int p = 0; p < length; p++) {
+			int v = road.getVelocity(p);
+			if (v != HighwaySimulation.EMPTY) {
+				cars[p] = -1L;
+				v0[p] = (v & 1) == 0 ? 0 : -1L;
+				v1[p] = (v & 2) == 0 ? 0 : -1L;
+				v2[p] = (v & 4) == 0 ? 0 : -1L;
+				carCount += REPLICAS;
+			}
+			if (road.getEta(p) != HighwaySimulation.EMPTY) {
+				n++;
+				maxEta = Math.max(maxEta, road.getEta(p));
+			}
+		}
+
+		lights = new int[n];
+		eta = new long[bits(maxEta)][n];
+		red = new long[n];
+		for (int p = 0, l = 0; p < length; p++) {
+			int e = road.getEta(p);
+			if (e == HighwaySimulation.EMPTY)
+				continue;
+			lights[l] = p;
+			for (int b = 0; b < eta.length; b++)
+				eta[b][l] = (e >>> b & 1) == 0 ? 0 : -1L;
+			l++;
+		}
+
+		generation = road.getGeneration();
+		carLinger = road.getCarLinger();
+		redLightProb = road.getTrafficLightRedProb();
+		setTrafficLightRedTime(road.getTrafficLightRedTime());
+		random = new CounterRandom(road.getSeed());
+	}
+
+	/**
+	 * @see HighwaySimulation#setSeed(long)
+	 */
+	public void setSeed(long seed) {
+		random = new CounterRandom(seed);
+	}
+
+	public long getSeed() {
+		return random.getSeed();
+	}
+
+	public void setCarLinger(double carLinger) {
+		this.carLinger = carLinger;
+	}
+
+	public void setTrafficLightRedProb(double redLightProb) {
+		this.redLightProb = redLightProb;
+	}
+
+	public void setTrafficLightRedTime(int redTime) {
+		this.redTime = redTime;
+
+		// Make room for the bits of the longer red time
+		int bits = bits(Math.max(1, redTime));
+		if (bits > eta.length) {
+			long[][] grown = Arrays.copyOf(eta, bits);
+			for (int b = eta.length; b < bits; b++)
+				grown[b] = new long[lights.length];
+			eta = grown;
+		}
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Returns the velocity of the car of a replica at the given position
+	 * or {@link HighwaySimulation#EMPTY}
+	 */
+	public int getVelocity(int replica, int p) {
+		if ((cars[p] >>> replica & 1) == 0)
+			return HighwaySimulation.EMPTY;
+		return (int) ((v0[p] >>> replica & 1) | (v1[p] >>> replica & 1) << 1 |
+				(v2[p] >>> replica & 1) << 2);
+	}
+
+	/**
+	 * Returns the number of cars on all replicas
+	 */
+	public long getCarCount() {
+		return carCount;
+	}
+
+	/**
+	 * Returns the sum of the velocities of the cars on all replicas after
+	 * the last step
+	 */
+	public long getVelocitySum() {
+		return velocitySum;
+	}
+
+	/**
+	 * Returns the mean flow of the last step, i.e. the cars passing a
+	 * cell per step, averaged over all cells and replicas
+	 */
+	public double getFlow() {
+		return (double) velocitySum/length/REPLICAS;
+	}
+
+	public void step() {
+		int n = length, l = lights.length-1;
+		long sum = 0;
+
+		for (int k = 0; k < lights.length; k++)
+			red[k] = isRed(k);
+
+		Arrays.fill(nextCars, 0);
+		Arrays.fill(nextV0, 0);
+		Arrays.fill(nextV1, 0);
+		Arrays.fill(nextV2, 0);
+
+		// The obstacles on the five cells in front of the current one
+		long o1 = obstacles(0), o2 = obstacles(1%n), o3 = obstacles(2%n),
+				o4 = obstacles(3%n), o5 = obstacles(4%n);
+
+		for (int i = n-1; i >= 0; i--) {
+			long c = cars[i];
+			if (c != 0) {
+				// Bit k-1 of the velocity in thermometer code: t[k] tells
+				// whether the car is at least k fast; rule 1 and 2
+				long b0 = v0[i], b1 = v1[i], b2 = v2[i];
+				long f1 = ~o1, f2 = f1 & ~o2, f3 = f2 & ~o3, f4 = f3 & ~o4,
+						f5 = f4 & ~o5;
+				long t1 = c & f1;
+				long t2 = (b0 | b1 | b2) & f2;
+				long t3 = (b1 | b2) & f3;
+				long t4 = (b2 | (b1 & b0)) & f4;
+				long t5 = b2 & f5;
+
+				// Rule 3: the cars which linger lose one
+				long r = decision(carLinger, CounterRandom.key(generation, i),
+						HighwayCell.CAR_DRAW*PRECISION);
+				long s1 = t2 | (t1 & ~r), s2 = t3 | (t2 & ~r),
+						s3 = t4 | (t3 & ~r), s4 = t5 | (t4 & ~r), s5 = t5 & ~r;
+
+				// Rule 4: move the cars of every velocity
+				move(c & ~s1, i, 0);
+				move(s1 & ~s2, i, 1);
+				move(s2 & ~s3, i, 2);
+				move(s3 & ~s4, i, 3);
+				move(s4 & ~s5, i, 4);
+				move(s5, i, 5);
+				sum += Long.bitCount(s1)+Long.bitCount(s2)+Long.bitCount(s3)+
+						Long.bitCount(s4)+Long.bitCount(s5);
+			}
+
+			// Shift the window by one cell
+			while (l >= 0 && lights[l] > i)
+				l--;
+			o5 = o4;
+			o4 = o3;
+			o3 = o2;
+			o2 = o1;
+			o1 = c | (l >= 0 && lights[l] == i ? red[l] : 0);
+		}
+
+		for (int k = 0; k < lights.length; k++)
+			updateLight(k);
+
+		long[] tmp = cars;
+		cars = nextCars;
+		nextCars = tmp;
+		tmp = v0;
+		v0 = nextV0;
+		nextV0 = tmp;
+		tmp = v1;
+		v1 = nextV1;
+		nextV1 = tmp;
+		tmp = v2;
+		v2 = nextV2;
+		nextV2 = tmp;
+
+		velocitySum = sum;
+		generation++;
+	}
+
+	/**
+	 * Moves the given cars from the cell <code>i</code> by <code>v</code>
+	 * cells
+	 */
+	private void move(long m, int i, int v) {
+		if (m == 0)
+			return;
+
+		int j = (i+v)%length;
+		nextCars[j] |= m;
+		if ((v & 1) != 0)
+			nextV0[j] |= m;
+		if ((v & 2) != 0)
+			nextV1[j] |= m;
+		if ((v & 4) != 0)
+			nextV2[j] |= m;
+	}
+
+	/**
+	 * Returns the replicas with a car or a red light on the given cell
+	 */
+	private long obstacles(int p) {
+		int l = Arrays.binarySearch(lights, p);
+		return cars[p] | (l >= 0 ? red[l] : 0);
+	}
+
+	private long isRed(int light) {
+		long r = 0;
+		for (long[] plane : eta)
+			r |= plane[light];
+		return r;
+	}
+
+	/**
+	 * Counts down the red times which are positive and turns the lights
+	 * which are green afterwards red at random
+	 */
+	private void updateLight(int light) {
+		long borrow = red[light], zero = -1L;
+		for (long[] plane : eta) {
+			long bit = plane[light];
+			plane[light] = bit ^ borrow;
+			borrow &= ~bit;
+			zero &= ~plane[light];
+		}
+
+		long turn = zero & decision(redLightProb, CounterRandom.key(generation,
+				lights[light]), HighwayCell.LIGHT_DRAW*PRECISION);
+		int time = Math.max(1, redTime);
+		for (int b = 0; b < eta.length; b++)
+			if ((time >>> b & 1) != 0)
+				eta[b][light] |= turn;
+	}
+
+	/**
+	 * Returns the replicas which decide positively with the given 
+	 * probability. Going from the lowest bit of the probability to the
+	 * highest, a random number is smaller than it if its current bit is
+	 * smaller or equal and the number was smaller before.
+	 */
+	private long decision(double probability, long key, int draw) {
+		long p = Math.round(probability*(1 << PRECISION));
+		if (p <= 0)
+			return 0;
+		if (p >= 1 << PRECISION)
+			return -1L;
+
+		long m = 0;
+		for (int b = Long.numberOfTrailingZeros(p); b < PRECISION; b++) {
+			long r = random.nextLong(key, draw+b);
+			m = (p >>> b & 1) != 0 ? r | m : r & m;
+		}
+		return m;
+	}
+
+	private static int bits(int value) {
+		return 32-Integer.numberOfLeadingZeros(value);
+	}
+
+}
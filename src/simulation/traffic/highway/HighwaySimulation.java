@@ -15,6 +15,9 @@
  */
 package simulation.traffic.highway;
 
+import helpers.CounterRandom;
+import helpers.SimulationExecutor;
+
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
@@ -22,19 +25,45 @@ import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.swing.JComponent;
 
 import simulation.traffic.highway.HighwayCell.Car;
 import simulation.traffic.highway.HighwayCell.TrafficLight;
 
-public class HighwaySimulation extends JComponent implements MouseListener {
+public class HighwaySimulation extends JComponent implements MouseListener,
+		SimulationExecutor.Simulation<HighwaySimulation.Frame> {
 
 	private static final long serialVersionUID = 1L;
 	
 	private static final int SIZE = 14, IS = 10, VB = 10, HB = 20, SB = 2, SBD = 2;
 	
-	private HighwayCell[][] road;
+	/**
+	 * Marks a cell without a car or without a traffic light
+	 */
+	public static final int EMPTY = -1;
+	
+	/**
+	 * The minimum number of cells of a segment which is updated on its 
+	 * own by the parallel step
+	 */
+	private static final int SEGMENT_LENGTH = 1 << 14;
+	
+	/**
+	 * The velocity of the car on every cell and the buffer for the next
+	 * step, which are swapped after every step
+	 */
+	private byte[] cars, next;
+	
+	/**
+	 * The remaining red time of the traffic light on every cell; a light
+	 * is green at zero
+	 */
+	private int[] eta;
 	
 	private int generation;
 	
@@ -48,25 +77,94 @@ public class HighwaySimulation extends JComponent implements MouseListener {
 
 	private int redTime;
 	
+	private CounterRandom random = new CounterRandom();
+	
+	private ForkJoinPool pool;
+	
+	/**
+	 * The cars of every segment which move into the next segment, the 
+	 * sum of the velocities and the number of cars of every segment
+	 */
+	private int[] handoffPositions, handoffCount, carCount;
+	
+	private byte[] handoffVelocities;
+	
+	private long[] velocitySum;
+	
+	private Frame frame;
+	
+	private Executor editor;
+	
 	public HighwaySimulation(int length) {
-		road = new HighwayCell[2][length];
+		cars = new byte[length];
+		next = new byte[length];
+		eta = new int[length];
+		Arrays.fill(cars, (byte) EMPTY);
+		Arrays.fill(eta, EMPTY);
 		generation = 0;
-		clickAngles = new Rectangle[length];
-		for (int i = 0; i < clickAngles.length; i++)
-			clickAngles[i] = new Rectangle();
 		addMouseListener(this);
 	}
 	
-	private HighwayCell getCell(int p) {
-		return road[0][p%road[0].length];
+	/**
+	 * Places a new cell of the given type; without a type the traffic
+	 * light is removed
+	 */
+	public synchronized void place(int p, Class<? extends HighwayCell> type) {
+		p %= length();
+		if (type == Car.class)
+			cars[p] = 0;
+		else
+			eta[p] = type == TrafficLight.class ? 0 : EMPTY;
+	}
+	
+	/**
+	 * Returns the velocity of the car at the given position or 
+	 * {@link #EMPTY}
+	 */
+	public int getVelocity(int p) {
+		return cars[p%length()];
+	}
+	
+	public boolean isRed(int p) {
+		return eta[p%length()] > 0;
 	}
 	
-	private TrafficLight getTrafficLight(int p) {
-		return (TrafficLight) road[1][p%road[0].length];
+	/**
+	 * Returns the remaining red time of the traffic light at the given
+	 * position or {@link #EMPTY}
+	 */
+	int getEta(int p) {
+		return eta[p%length()];
 	}
 	
-	public void setCell(int p, HighwayCell c) {
-		road[c instanceof Car ? 0 : 1][p%road[0].length] = c;
+	/**
+	 * Seeds all random decisions, so that runs with the same seed and 
+	 * parameters yield the same roads
+	 */
+	public void setSeed(long seed) {
+		random = new CounterRandom(seed);
+	}
+	
+	public long getSeed() {
+		return random.getSeed();
+	}
+	
+	/**
+	 * Switches between the sequential step and the parallel step which 
+	 * updates segments of the road on a fork-join pool; both yield the
+	 * same road
+	 */
+	public void setParallel(boolean parallel) {
+		if (parallel && pool == null)
+			pool = new ForkJoinPool();
+		else if (!parallel && pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+	
+	public boolean isParallel() {
+		return pool != null;
 	}
 	
 	public int getGeneration() {
@@ -78,36 +176,41 @@ public class HighwaySimulation extends JComponent implements MouseListener {
 	}
 	
 	public int getDistanceToNext(int cp) {
-		int p = 0;
-		HighwayCell c, trafficLight;
+		int p = 0, n = length();
 		
-		while (p < road[0].length) {
-			c = getCell((cp+1)+p);
-			trafficLight = getTrafficLight((cp+1)+p);
-			
-			if (c != null || (trafficLight != null && trafficLight.isSolid()))
+		for (int i = (cp+1)%n; p < n; p++, i = i+1 == n ? 0 : i+1)
+			if (isObstacle(i))
 				break;
-			
-			p++;
-		}
 		
 		return p;
 	}
 	
+	private boolean isObstacle(int p) {
+		return cars[p] != EMPTY || eta[p] > 0;
+	}
+	
 	public int length() {
-		return road[0].length;
+		return cars.length;
 	}
 	
 	public void notifyPlaceModeChanged(Class<? extends HighwayCell> newType) {
 		this.newType = newType;
 	}
 	
+	/**
+	 * Runs the changes made with the mouse on the given executor, which
+	 * is usually the one stepping this road; without an editor the mouse
+	 * is ignored
+	 */
+	public void setEditor(Executor editor) {
+		this.editor = editor;
+	}
+	
 	public void setCarLinger(double carLinger) {
 		this.carLinger = carLinger;
 	}
 	
 	public void setTrafficLightRedProb(double redLightProb) {
-		System.out.println("SET: " + redLightProb);
 		this.redLightProb = redLightProb;
 	}
 	
@@ -120,7 +223,6 @@ public class HighwaySimulation extends JComponent implements MouseListener {
 	}
 	
 	public double getTrafficLightRedProb() {
-		System.out.println(redLightProb);
 		return redLightProb;
 	}
 	
@@ -128,42 +230,166 @@ public class HighwaySimulation extends JComponent implements MouseListener {
 		return redTime;
 	}
 	
-	public void step() {
-		HighwaySimulation tmp = new HighwaySimulation(length());
-		tmp.carLinger = carLinger;
-		tmp.redLightProb = redLightProb;
-		tmp.redTime = redTime;
-		double tmpAvgV = 0, items = 0;
+	@Override
+	public synchronized void step() {
+		int segments = pool == null ? 1 : Math.max(1, Math.min(
+				length()/SEGMENT_LENGTH, 4*pool.getParallelism()));
+		
+		if (carCount == null || carCount.length != segments) {
+			handoffPositions = new int[segments*HighwayCell.MAX_V];
+			handoffVelocities = new byte[segments*HighwayCell.MAX_V];
+			handoffCount = new int[segments];
+			carCount = new int[segments];
+			velocitySum = new long[segments];
+		}
 		
-		for (int i = 0; i < road[0].length; i++) {
-			if (road[0][i] != null)
-				road[0][i].update(tmp, i, getDistanceToNext(i), generation);
+		if (segments == 1)
+			updateSegment(0, 1);
+		else
+			pool.invoke(new SegmentUpdate(0, segments, segments));
+		
+		// Finish the borders of the segments: the cars which moved into
+		// the next segment and the lights the previous segment looked at
+		long tmpAvgV = 0, items = 0;
+		for (int s = 0; s < segments; s++) {
+			for (int j = s*HighwayCell.MAX_V; j < s*HighwayCell.MAX_V+
+					handoffCount[s]; j++)
+				next[handoffPositions[j]] = handoffVelocities[j];
+			
+			int from = segmentStart(s, segments);
+			updateLights(from, Math.min(from+HighwayCell.MAX_V, 
+					segmentStart(s+1, segments)));
 			
-			if (road[1][i] != null)
-				road[1][i].update(tmp, i, -1, generation);
+			tmpAvgV += velocitySum[s];
+			items += carCount[s];
 		}
 		
 		// Create statistics
-		for (int i = 0; i < length(); i++) {
-			if (road[0][i] != null) {
-				tmpAvgV += road[0][i].getVelocity();
+		if (items > 0)
+			averageVelocity = (averageVelocity+((double) tmpAvgV/items))/2;
+		
+		byte[] tmp = cars;
+		cars = next;
+		next = tmp;
+		generation++;
+	}
+	
+	private int segmentStart(int s, int segments) {
+		return (int) ((long) s*length()/segments);
+	}
+	
+	/**
+	 * Moves the cars of a segment into the other buffer and updates the
+	 * lights of the segment. A car looks up to the maximum velocity ahead,
+	 * so the segment reads the first cells of the next segment, which are
+	 * left unchanged: cars moving there are handed off, and the lights 
+	 * there are updated after all segments.
+	 */
+	private void updateSegment(int s, int segments) {
+		int n = length(), from = segmentStart(s, segments);
+		int to = segmentStart(s+1, segments);
+		int handoff = s*HighwayCell.MAX_V, sum = 0, items = 0;
+		
+		// Going backwards, the free cells in front of a car are counted
+		// on the way, but only up to the maximum velocity
+		Arrays.fill(next, from, to, (byte) EMPTY);
+		int free = 0;
+		while (free < HighwayCell.MAX_V && !isObstacle((to+free)%n))
+			free++;
+		
+		for (int i = to-1; i >= from; i--) {
+			if (cars[i] != EMPTY) {
+				int v = Car.update(cars[i], free, carLinger, random, 
+						CounterRandom.key(generation, i));
+				if (i+v < to) {
+					next[i+v] = (byte) v;
+				} else {
+					handoffPositions[handoff] = (i+v)%n;
+					handoffVelocities[handoff++] = (byte) v;
+				}
+				sum += v;
 				items++;
 			}
+			
+			free = isObstacle(i) ? 0 : Math.min(free+1, HighwayCell.MAX_V);
 		}
 		
-		averageVelocity = (averageVelocity+(tmpAvgV/items))/2;
+		updateLights(Math.min(from+HighwayCell.MAX_V, to), to);
 		
-		road = tmp.road;
-		generation++;
+		handoffCount[s] = handoff-s*HighwayCell.MAX_V;
+		velocitySum[s] = sum;
+		carCount[s] = items;
+	}
+	
+	private void updateLights(int from, int to) {
+		for (int i = from; i < to; i++)
+			if (eta[i] != EMPTY)
+				eta[i] = TrafficLight.update(eta[i], redLightProb, redTime,
+						random, CounterRandom.key(generation, i));
+	}
+	
+	/**
+	 * Updates the segments <code>[first, last)</code>
+	 */
+	private class SegmentUpdate extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int first, last, segments;
+		
+		private SegmentUpdate(int first, int last, int segments) {
+			this.first = first;
+			this.last = last;
+			this.segments = segments;
+		}
+		
+		@Override
+		protected void compute() {
+			if (last-first == 1) {
+				updateSegment(first, segments);
+				return;
+			}
+			
+			int mid = (first+last) >>> 1;
+			invokeAll(new SegmentUpdate(first, mid, segments),
+					new SegmentUpdate(mid, last, segments));
+		}
+		
+	}
+	
+	/**
+	 * Takes a picture of the road which can be painted while the
+	 * simulation goes on
+	 */
+	@Override
+	public synchronized Frame getFrame() {
+		int[] velocities = new int[length()];
+		byte[] lights = new byte[length()];
+		
+		for (int i = 0; i < length(); i++) {
+			velocities[i] = cars[i];
+			if (eta[i] != EMPTY)
+				lights[i] = eta[i] > 0 ? Frame.RED : Frame.GREEN;
+		}
+		
+		return new Frame(generation, getAverageVelocity(), velocities, 
+				lights);
+	}
+	
+	/**
+	 * Sets the frame to paint
+	 */
+	public void setFrame(Frame frame) {
+		this.frame = frame;
 		repaint();
 	}
 	
 	@Override
 	public String toString() {
 		String ln1 = "", ln2 = "";
-		for (int i = 0; i < road[0].length; i++) {
-			ln1 += road[0][i] == null ? "." : road[0][i];
-			ln2 += road[1][i] == null ? " " : road[1][i];
+		for (int i = 0; i < length(); i++) {
+			ln1 += cars[i] == EMPTY ? "." : String.valueOf(cars[i]);
+			ln2 += eta[i] == EMPTY ? " " : (eta[i] > 0 ? "R" : "G");
 		}
 		return ln1 + "\n" + ln2;
 	}
@@ -199,6 +425,16 @@ public class HighwaySimulation extends JComponent implements MouseListener {
 		int itemsPerRow = calculateSize(getWidth(), getHeight());
 		int i = 0, y0 = HB, streetWidth, xo, yo;
 		
+		if (frame == null)
+			return;
+		
+		// Only a road which is shown needs the click areas
+		if (clickAngles == null) {
+			clickAngles = new Rectangle[length()];
+			for (int k = 0; k < clickAngles.length; k++)
+				clickAngles[k] = new Rectangle();
+		}
+		
 		while (i < length()) {
 			streetWidth = Math.min(itemsPerRow, length()-i)*(SIZE+2)+VB;
 			
@@ -213,9 +449,9 @@ public class HighwaySimulation extends JComponent implements MouseListener {
 			
 			for (int j = 0; j < itemsPerRow; j++) {
 				// Draw the traffic light
-				TrafficLight tl = getTrafficLight(i);
-				if (tl != null)
-					g.setColor(tl.isSolid() ? Color.red : Color.green);
+				byte light = frame.lights[i];
+				if (light != Frame.NONE)
+					g.setColor(light == Frame.RED ? Color.red : Color.green);
 				else
 					g.setColor(Color.gray.brighter());
 				
@@ -228,8 +464,8 @@ public class HighwaySimulation extends JComponent implements MouseListener {
 						clickAngles[i].width, clickAngles[i].height);
 				
 				// Draw the cars
-				HighwayCell car = getCell(i);
-				if (car != null) {
+				int v = frame.velocities[i];
+				if (v >= 0) {
 					xo = VB+j*(SIZE+2)+(SIZE-IS)/2;
 					yo = y0+(SIZE-IS)/2;
 					
@@ -237,7 +473,7 @@ public class HighwaySimulation extends JComponent implements MouseListener {
 					g.fillRect(xo, yo, IS, IS);
 					
 					g.setColor(Color.black);
-					g.fillRect(xo, yo, (IS/5)*car.getVelocity(), IS);
+					g.fillRect(xo, yo, (IS/5)*v, IS);
 				}
 				
 				i++;
@@ -251,33 +487,30 @@ public class HighwaySimulation extends JComponent implements MouseListener {
 
 	@Override
 	public void mouseClicked(MouseEvent e) {
-		if (!isEnabled())
+		if (!isEnabled() || clickAngles == null || editor == null)
 			return;
 		
 		Point p = e.getPoint();
 		for (int i = 0; i < clickAngles.length; i++) {
 			if (clickAngles[i].contains(p)) {
-				HighwayCell cell = getCell(i);
+				final int k = i;
+				final Class<? extends HighwayCell> type = newType;
 				
-				if (cell == null) {
-					// Place a new cell
-					try {
-						setCell(i, newType == null ? null : newType.newInstance());
-					} catch (Exception e2) {
-						System.out.println("Error creating new cell: " + e2);
+				// The editor publishes a new frame afterwards
+				editor.execute(new Runnable() {
+					
+					@Override
+					public void run() {
+						if (cars[k] == EMPTY)
+							// Place a new cell
+							place(k, type);
+						else
+							cars[k] = (byte) Car.accelerate(cars[k]);
 					}
-					break;
-				}
-				
-				if (cell instanceof Car) {
-					((Car) cell).accelerate();
-					break;
-				}
-				
+				});
+				break;
 			}
 		}
-		
-		repaint();
 	}
 
 	@Override
@@ -292,4 +525,52 @@ public class HighwaySimulation extends JComponent implements MouseListener {
 	@Override
 	public void mouseExited(MouseEvent e) { }
 	
+	/**
+	 * An immutable picture of the road after a step
+	 */
+	public static class Frame {
+		
+		public static final byte NONE = 0, GREEN = 1, RED = 2;
+		
+		private final int generation;
+		
+		private final double averageVelocity;
+		
+		private final int[] velocities;
+		
+		private final byte[] lights;
+		
+		private Frame(int generation, double averageVelocity, 
+				int[] velocities, byte[] lights) {
+			this.generation = generation;
+			this.averageVelocity = averageVelocity;
+			this.velocities = velocities;
+			this.lights = lights;
+		}
+		
+		public int getGeneration() {
+			return generation;
+		}
+		
+		public double getAverageVelocity() {
+			return averageVelocity;
+		}
+		
+		/**
+		 * Returns the velocity of the car at the given position or
+		 * <code>-1</code> if there is none
+		 */
+		public int getVelocity(int p) {
+			return velocities[p];
+		}
+		
+		/**
+		 * Returns {@link #NONE}, {@link #GREEN} or {@link #RED}
+		 */
+		public byte getLight(int p) {
+			return lights[p];
+		}
+		
+	}
+	
 }
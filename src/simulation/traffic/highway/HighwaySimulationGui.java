@@ -17,6 +17,7 @@ package simulation.traffic.highway;
  
 
 import helpers.SimpleForm;
+import helpers.SimulationExecutor;
 
 import java.awt.BorderLayout;
 import java.awt.Dimension;
@@ -26,6 +27,7 @@ import java.awt.event.ActionListener;
 
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -34,25 +36,33 @@ import javax.swing.JSlider;
 import javax.swing.JSpinner;
 import javax.swing.JToggleButton;
 import javax.swing.SpinnerNumberModel;
-import javax.swing.Timer;
 import javax.swing.border.EmptyBorder;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import simulation.traffic.highway.HighwayCell.Car;
+import simulation.traffic.highway.HighwaySimulation.Frame;
 import simulation.traffic.highway.HighwayCell.TrafficLight;
 
-public class HighwaySimulationGui extends JPanel implements ActionListener {
+public class HighwaySimulationGui extends JPanel implements ActionListener,
+		SimulationExecutor.FrameListener<Frame> {
  
 	private static final long serialVersionUID = 1L;
 	
+	/**
+	 * The frame rate in the max speed mode
+	 */
+	private static final int FRAMES_PER_SECOND = 25;
+	
     private JButton stepButton, newButton, placeRandom;
     
     private JLabel statisticalData;
 
     private JSlider slider;
     
-    private Timer timer;
+    private JCheckBox maxSpeed;
+    
+    private SimulationExecutor<Frame> executor;
 
     private HighwaySimulation road;
     
@@ -92,6 +102,8 @@ public class HighwaySimulationGui extends JPanel implements ActionListener {
 		slider.setPaintLabels(true);
 		slider.setPaintTicks(true);
 		slider.setValue(2);
+		
+		maxSpeed = new JCheckBox("Max speed");
 
 		length = new JSpinner(new SpinnerNumberModel(42, 2, 1000, 1));
 
@@ -145,7 +157,8 @@ public class HighwaySimulationGui extends JPanel implements ActionListener {
 		
 		// Set initial values
 		setEnabled(false, stepButton, autoToggle, placeCar, placeTrafficLight, 
-				placeNothing, placeRandom, slider, carLinger, redProb, redTime);
+				placeNothing, placeRandom, slider, maxSpeed, carLinger, 
+				redProb, redTime);
 		
 		// Lay-out components
         setLayout(new BorderLayout(4, 4));
@@ -172,6 +185,7 @@ public class HighwaySimulationGui extends JPanel implements ActionListener {
         controls.add(new SimpleForm()
 	    	.addSeperator("Simulation")
 	    	.addLastField(slider)
+	    	.addLastField(maxSpeed)
 	    	.addMultiField(autoToggle, stepButton)
 	    	.addSeperator("Statistics")
 	    	.addLastField(statisticalData));
@@ -198,8 +212,12 @@ public class HighwaySimulationGui extends JPanel implements ActionListener {
     	}
     	
     	if (evt.getSource() == newButton) {
-    		// Create a new model
+    		// Create a new model which is stepped on a thread of its own
+    		if (executor != null)
+    			executor.shutdown();
     		road = new HighwaySimulation((int) length.getValue());
+    		executor = new SimulationExecutor<Frame>("Highway", road, this);
+    		road.setEditor(executor);
     		
     		// Add it to the view
     		scroll.getViewport().removeAll();
@@ -207,7 +225,8 @@ public class HighwaySimulationGui extends JPanel implements ActionListener {
     		
     		// Enable editor components
     		setEnabled(true, stepButton, autoToggle, placeCar, placeTrafficLight, 
-    				placeNothing, placeRandom, slider, carLinger, redProb, redTime);
+    				placeNothing, placeRandom, slider, maxSpeed, carLinger, 
+    				redProb, redTime);
     		
     		// De-select all place buttons
     		placeCar.setSelected(true);
@@ -217,29 +236,27 @@ public class HighwaySimulationGui extends JPanel implements ActionListener {
     		road.setCarLinger((double) carLinger.getValue());
     		road.setTrafficLightRedProb((double) redProb.getValue());
     		road.setTrafficLightRedTime((int) redTime.getValue());
+    		
+    		// The new model is painted from a first frame
+    		executor.refresh();
     	}
     	
     	if ("step".equals(evt.getActionCommand())) {
-    		road.step();
-    		
-    		// Set statistical data
-    		statisticalData.setText(road.getGeneration() + ". gen, " +
-    				road.getAverageVelocity() + " avg v");
+    		// Perform a step, the result arrives in frameReady()
+    		executor.step();
     	}
     	
     	if ("auto".equals(evt.getActionCommand())) {
-    		if (autoToggle.isSelected()) {
-    			timer = new Timer(1000/slider.getValue(), this);
-    			timer.setActionCommand("step");
-    			timer.start();
-    		} else {
-    			timer.stop();
-    			timer = null;
-    		}
+    		if (autoToggle.isSelected() && maxSpeed.isSelected())
+    			executor.startMaxSpeed(FRAMES_PER_SECOND);
+    		else if (autoToggle.isSelected())
+    			executor.start(slider.getValue());
+    		else
+    			executor.stop();
     		
     		// Disable other components
     		setEnabled(!autoToggle.isSelected(), stepButton, placeCar, 
-    				placeTrafficLight, placeNothing, placeRandom, slider, 
+    				placeTrafficLight, placeNothing, placeRandom, slider, maxSpeed, 
     				carLinger, redProb, redTime, road, newButton, length);
     		
     		// Manage caption
@@ -247,6 +264,17 @@ public class HighwaySimulationGui extends JPanel implements ActionListener {
     	}
     }
     
+    /**
+     * Paints the frame of a step and updates the statistical data
+     */
+    @Override
+    public void frameReady(Frame frame) {
+    	road.setFrame(frame);
+    	
+    	statisticalData.setText(frame.getGeneration() + ". gen, " +
+    			frame.getAverageVelocity() + " avg v");
+    }
+    
     public static final void setEnabled(boolean enabled, JComponent...components) {
     	for (JComponent component : components)
 			component.setEnabled(enabled);
@@ -15,6 +15,8 @@
  */
 package simulation.traffic.motorway;
 
+import helpers.SimulationExecutor;
+
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
@@ -22,12 +24,14 @@ import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.util.concurrent.Executor;
 
 import javax.swing.JComponent;
 
 import simulation.traffic.highway.HighwayCell;
 
-public class MotorwaySimulation extends JComponent implements MouseListener {
+public class MotorwaySimulation extends JComponent implements MouseListener,
+		SimulationExecutor.Simulation<MotorwaySimulation.Frame> {
 
 	private static final long serialVersionUID = 1L;
 	
@@ -45,6 +49,10 @@ public class MotorwaySimulation extends JComponent implements MouseListener {
 	
 	private double linger, averageVelocity;
 	
+	private Frame frame;
+	
+	private Executor editor;
+	
 	public MotorwaySimulation(int length) {
 		road = new MotorwayCar[2][length];
 		generation = 0;
@@ -116,7 +124,17 @@ public class MotorwaySimulation extends JComponent implements MouseListener {
 		this.linger = linger;
 	}
 	
-	public void step() {
+	/**
+	 * Runs the changes made with the mouse on the given executor, which
+	 * is usually the one stepping this motorway; without an editor the
+	 * mouse is ignored
+	 */
+	public void setEditor(Executor editor) {
+		this.editor = editor;
+	}
+	
+	@Override
+	public synchronized void step() {
 		MotorwayCar c;
 		double tmpAvgV = 0, items = 0;
 		
@@ -143,10 +161,32 @@ public class MotorwaySimulation extends JComponent implements MouseListener {
 		
 		averageVelocity = (averageVelocity+(tmpAvgV/items))/2;
 		
-		repaint();
 		generation++;
 	}
 	
+	/**
+	 * Takes a picture of the motorway which can be painted while the
+	 * simulation goes on
+	 */
+	@Override
+	public synchronized Frame getFrame() {
+		int[][] velocities = new int[road.length][length()];
+		
+		for (int i = 0; i < road.length; i++)
+			for (int j = 0; j < length(); j++)
+				velocities[i][j] = road[i][j] == null ? -1 : road[i][j].v;
+		
+		return new Frame(generation, getAverageVelocity(), velocities);
+	}
+	
+	/**
+	 * Sets the frame to paint
+	 */
+	public void setFrame(Frame frame) {
+		this.frame = frame;
+		repaint();
+	}
+	
 	@Override
 	public String toString() {
 		String ln1 = "", ln2 = "";
@@ -182,7 +222,10 @@ public class MotorwaySimulation extends JComponent implements MouseListener {
 	protected void paintComponent(Graphics g) {
 		// Set the canvas size if not calculated yet
 		int itemsPerRow = calculateSize(getWidth(), getHeight());
-		int i = 0, y0 = HB, streetWidth, xo, yo, cc = 0;
+		int i = 0, y0 = HB, streetWidth, xo, yo, cc = 0, v;
+		
+		if (frame == null)
+			return;
 		
 		while (i < length()) {
 			streetWidth = Math.min(itemsPerRow, length()-i)*(SIZE+2)+VB;
@@ -218,8 +261,8 @@ public class MotorwaySimulation extends JComponent implements MouseListener {
 				cc++;
 				
 				// Draw the cars
-				MotorwayCar car = getCell(FAST_LANE, i);
-				if (car != null) {
+				v = frame.velocities[FAST_LANE][i];
+				if (v >= 0) {
 					xo = VB+j*(SIZE+2)+(SIZE-IS)/2;
 					yo = y0+(SIZE-IS)/2;
 					
@@ -227,7 +270,7 @@ public class MotorwaySimulation extends JComponent implements MouseListener {
 					g.fillRect(xo, yo, IS, IS);
 					
 					g.setColor(Color.black);
-					g.fillRect(xo, yo, (IS/5)*car.v, IS);
+					g.fillRect(xo, yo, (IS/5)*v, IS);
 				}
 				
 				g.setColor(Color.gray.brighter());
@@ -240,8 +283,8 @@ public class MotorwaySimulation extends JComponent implements MouseListener {
 						clickAngles[cc].width, clickAngles[cc].height);
 				cc++;
 				
-				car = getCell(NORMAL_LANE, i);
-				if (car != null) {
+				v = frame.velocities[NORMAL_LANE][i];
+				if (v >= 0) {
 					xo = VB+j*(SIZE+2)+(SIZE-IS)/2;
 					yo = y0+8+(SIZE-IS)/2+SIZE;
 					
@@ -249,7 +292,7 @@ public class MotorwaySimulation extends JComponent implements MouseListener {
 					g.fillRect(xo, yo, IS, IS);
 					
 					g.setColor(Color.black);
-					g.fillRect(xo, yo, (IS/5)*car.v, IS);
+					g.fillRect(xo, yo, (IS/5)*v, IS);
 				}
 				
 				i++;
@@ -263,29 +306,34 @@ public class MotorwaySimulation extends JComponent implements MouseListener {
 
 	@Override
 	public void mouseClicked(MouseEvent e) {
-		if (!isEnabled())
+		if (!isEnabled() || editor == null)
 			return;
 		
 		Point p = e.getPoint();
 		for (int i = 0; i < clickAngles.length; i++) {
 			if (clickAngles[i].contains(p)) {
-				int lane = i%2, pos = i/2;
-				MotorwayCar cell = getCell(lane, pos);
-				
-				if (cell == null) {
-					// Place a new cell
-					setCell(lane, pos, new MotorwayCar(0, generation));
-					break;
-				} else {
-					cell.v = cell.v + 1;
-					if (cell.v > MotorwayCar.MAX_V)
-						setCell(lane, pos, null);
-				}
+				final int lane = i%2, pos = i/2;
 				
+				// The editor publishes a new frame afterwards
+				editor.execute(new Runnable() {
+					
+					@Override
+					public void run() {
+						MotorwayCar cell = getCell(lane, pos);
+						
+						if (cell == null) {
+							// Place a new cell
+							setCell(lane, pos, new MotorwayCar(0, generation));
+						} else {
+							cell.v = cell.v + 1;
+							if (cell.v > MotorwayCar.MAX_V)
+								setCell(lane, pos, null);
+						}
+					}
+				});
+				break;
 			}
 		}
-		
-		repaint();
 	}
 
 	@Override
@@ -300,6 +348,42 @@ public class MotorwaySimulation extends JComponent implements MouseListener {
 	@Override
 	public void mouseExited(MouseEvent e) { }
 	
+	/**
+	 * An immutable picture of the motorway after a step
+	 */
+	public static class Frame {
+		
+		private final int generation;
+		
+		private final double averageVelocity;
+		
+		private final int[][] velocities;
+		
+		private Frame(int generation, double averageVelocity, 
+				int[][] velocities) {
+			this.generation = generation;
+			this.averageVelocity = averageVelocity;
+			this.velocities = velocities;
+		}
+		
+		public int getGeneration() {
+			return generation;
+		}
+		
+		public double getAverageVelocity() {
+			return averageVelocity;
+		}
+		
+		/**
+		 * Returns the velocity of the car at the given position or
+		 * <code>-1</code> if there is none
+		 */
+		public int getVelocity(int lane, int p) {
+			return velocities[lane][p];
+		}
+		
+	}
+	
 	public class MotorwayCar {
 		
 		public static final int MIN_V = 0, MAX_V = 5;
@@ -16,6 +16,7 @@
 package simulation.traffic.motorway;
 
 import helpers.SimpleForm;
+import helpers.SimulationExecutor;
 
 import java.awt.BorderLayout;
 import java.awt.Dimension;
@@ -24,6 +25,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -32,28 +34,37 @@ import javax.swing.JSlider;
 import javax.swing.JSpinner;
 import javax.swing.JToggleButton;
 import javax.swing.SpinnerNumberModel;
-import javax.swing.Timer;
 import javax.swing.border.EmptyBorder;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
-public class MotorwaySimulationGui extends JPanel implements ActionListener {
+import simulation.traffic.motorway.MotorwaySimulation.Frame;
+
+public class MotorwaySimulationGui extends JPanel implements ActionListener,
+		SimulationExecutor.FrameListener<Frame> {
  
 	private static final long serialVersionUID = 1L;
 	
+	/**
+	 * The frame rate in the max speed mode
+	 */
+	private static final int FRAMES_PER_SECOND = 25;
+	
     private JButton stepButton, newButton;
     
     private JLabel statisticalData;
 
     private JSlider slider;
     
+    private JCheckBox maxSpeed;
+    
     private JSpinner length, carLinger;
     
     private JToggleButton autoToggle;
     
     private JScrollPane scroll;
     
-    private Timer timer;
+    private SimulationExecutor<Frame> executor;
 
     private MotorwaySimulation motorway;
     
@@ -85,6 +96,8 @@ public class MotorwaySimulationGui extends JPanel implements ActionListener {
 		slider.setPaintTicks(true);
 		slider.setValue(2);
 		
+		maxSpeed = new JCheckBox("Max speed");
+		
 		newButton = new JButton("Create new motorway");
 		newButton.setActionCommand("new");
 		newButton.addActionListener(this);
@@ -100,7 +113,7 @@ public class MotorwaySimulationGui extends JPanel implements ActionListener {
 		});
 		
 		// Set initial values
-		setEnabled(false, stepButton, autoToggle, slider, carLinger);
+		setEnabled(false, stepButton, autoToggle, slider, maxSpeed, carLinger);
 		
 		// Lay-out components
 		setLayout(new BorderLayout(4, 4));
@@ -123,6 +136,7 @@ public class MotorwaySimulationGui extends JPanel implements ActionListener {
         controls.add(new SimpleForm()
         	.addSeperator("Simulation")
 	    	.addLastField(slider)
+	    	.addLastField(maxSpeed)
 	    	.addMultiField(autoToggle, stepButton));
         
         add(controls, BorderLayout.SOUTH);
@@ -136,38 +150,39 @@ public class MotorwaySimulationGui extends JPanel implements ActionListener {
     	String cmd = evt.getActionCommand();
     	
     	if ("new".equals(cmd)) {
-    		// Create a new motorway
+    		// Create a new motorway which is stepped on a thread of its own
+    		if (executor != null)
+    			executor.shutdown();
     		motorway = new MotorwaySimulation((int) length.getValue());
+    		executor = new SimulationExecutor<Frame>("Motorway", motorway, this);
+    		motorway.setEditor(executor);
     		
     		scroll.getViewport().removeAll();
     		scroll.getViewport().add(motorway);
     		
     		motorway.setCarLinger((double) carLinger.getValue());
     		
-    		setEnabled(true, stepButton, autoToggle, slider, carLinger);
+    		setEnabled(true, stepButton, autoToggle, slider, maxSpeed, carLinger);
+    		
+    		// The new model is painted from a first frame
+    		executor.refresh();
     	}
     	
     	if ("step".equals(evt.getActionCommand())) {
-    		// Make a step
-    		motorway.step();
-    		
-    		// Set statistical data
-    		statisticalData.setText(motorway.getGeneration() + ". gen, " +
-    				motorway.getAverageVelocity() + " avg v");
+    		// Make a step, the result arrives in frameReady()
+    		executor.step();
     	}
     	
     	if ("auto".equals(evt.getActionCommand())) {
-    		if (autoToggle.isSelected()) {
-    			timer = new Timer(1000/slider.getValue(), this);
-    			timer.setActionCommand("step");
-    			timer.start();
-    		} else {
-    			timer.stop();
-    			timer = null;
-    		}
+    		if (autoToggle.isSelected() && maxSpeed.isSelected())
+    			executor.startMaxSpeed(FRAMES_PER_SECOND);
+    		else if (autoToggle.isSelected())
+    			executor.start(slider.getValue());
+    		else
+    			executor.stop();
     		
     		// Disable other components
-    		setEnabled(!autoToggle.isSelected(), stepButton, slider, 
+    		setEnabled(!autoToggle.isSelected(), stepButton, slider, maxSpeed, 
     				newButton, length, carLinger, motorway);
     		
     		// Manage caption
@@ -175,6 +190,17 @@ public class MotorwaySimulationGui extends JPanel implements ActionListener {
     	}
     }
     
+    /**
+     * Paints the frame of a step and updates the statistical data
+     */
+    @Override
+    public void frameReady(Frame frame) {
+    	motorway.setFrame(frame);
+    	
+    	statisticalData.setText(frame.getGeneration() + ". gen, " +
+    			frame.getAverageVelocity() + " avg v");
+    }
+    
     public static final void setEnabled(boolean enabled, JComponent...components) {
     	for (JComponent component : components)
 			component.setEnabled(enabled);
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 maxstrauch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package simulation.fishandsharks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PopulationHistoryTest {
+
+	@Test
+	public void keepsTheLastSamplesAfterWrapping() {
+		PopulationHistory history = new PopulationHistory(2, 64);
+		for (int i = 0; i < 200; i++)
+			history.add(i, 1000-i);
+
+		assertEquals(200, history.getCount());
+		assertEquals(1000, history.getTotal());
+
+		int[] range = new int[2];
+		for (int i = 200-64; i < 200; i++) {
+			history.range(0, i, i+1, range);
+			assertArrayEquals(new int[] {i, i}, range);
+			history.range(1, i, i+1, range);
+			assertArrayEquals(new int[] {1000-i, 1000-i}, range);
+		}
+
+		history.range(0, 200-64, 200, range);
+		assertArrayEquals(new int[] {136, 199}, range);
+		history.range(1, 150, 190, range);
+		assertArrayEquals(new int[] {811, 850}, range);
+	}
+
+	@Test
+	public void findsTheRangeOfTheKeptSamples() {
+		checkRanges(new PopulationHistory(1, 256), 3000);
+	}
+
+	@Test
+	public void findsTheRangeWhileGrowing() {
+		checkRanges(new PopulationHistory(1), 5000);
+	}
+
+	/**
+	 * Adds random samples and compares the range of random intervals of
+	 * the kept samples with a scan of all of them
+	 */
+	private static void checkRanges(PopulationHistory history, int n) {
+		Random random = new Random(42);
+		int[] values = new int[n], range = new int[2];
+
+		for (int count = 1; count <= n; count++) {
+			values[count-1] = random.nextInt(10000);
+			history.add(values[count-1]);
+			if (count%37 != 0)
+				continue;
+
+			int first = Math.max(0, count-history.getMaxSamples());
+			for (int k = 0; k < 20; k++) {
+				int from = first+random.nextInt(count-first), 
+						to = from+1+random.nextInt(count-from);
+
+				int lo = Integer.MAX_VALUE, hi = Integer.MIN_VALUE;
+				for (int i = from; i < to; i++) {
+					lo = Math.min(lo, values[i]);
+					hi = Math.max(hi, values[i]);
+				}
+
+				history.range(0, from, to, range);
+				assertArrayEquals(from + ".." + to, new int[] {lo, hi}, range);
+			}
+		}
+	}
+
+}